@@ -0,0 +1,58 @@
+package event;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+// The whole filter chain with the presets from the filter panel, plus "All" with every slider
+// moved, which is the most work a single filter can be
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+public class ChainBenchmark {
+    @Param({"Vintage", "Summer", "Noir", "All"})
+    public String preset;
+
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"INT_RGB", "3BYTE_BGR", "INT_ARGB"})
+    public String imageType;
+
+    private BufferedImage image;
+    private ImageFilter filter;
+
+    @Setup
+    public void setUp() {
+        image = TestImages.create(megapixels, imageType);
+
+        Map<String, Integer> values = new HashMap<>();
+        if (preset.equals("All")) {
+            for (String name : FilterParams.NAMES) {
+                values.put(name, 30);
+            }
+        } else {
+            values.putAll(FilterPresets.values(preset));
+        }
+        filter = new ImageFilter(values);
+    }
+
+    @Benchmark
+    public BufferedImage apply(Megapixels counter) {
+        counter.add(image.getWidth(), image.getHeight());
+        return filter.apply(image);
+    }
+}
@@ -0,0 +1,23 @@
+package event;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Counts the pixels filtered; JMH reports the field as a rate next to ops/s, i.e. MP/s
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Megapixels {
+    public double megapixels;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megapixels = 0;
+    }
+
+    void add(int width, int height) {
+        megapixels += (double) width * height / 1e6;
+    }
+}
@@ -0,0 +1,48 @@
+package event;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+// One filter stage at a time: ImageFilter runs all stages in one fused pass, so each stage is
+// measured as a filter with only its own slider moved
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+public class StageBenchmark {
+    @Param({"Brightness", "Contrast", "Saturation", "Temperature", "Fade", "Vignette"})
+    public String stage;
+
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"INT_RGB", "3BYTE_BGR", "INT_ARGB"})
+    public String imageType;
+
+    private BufferedImage image;
+    private ImageFilter filter;
+
+    @Setup
+    public void setUp() {
+        image = TestImages.create(megapixels, imageType);
+        filter = new ImageFilter(Map.of(stage, 30));
+    }
+
+    @Benchmark
+    public BufferedImage apply(Megapixels counter) {
+        counter.add(image.getWidth(), image.getHeight());
+        return filter.apply(image);
+    }
+}
@@ -0,0 +1,39 @@
+package event;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Photo sized images in a 4:3 format, filled with the same noisy gradients on every run
+final class TestImages {
+    private TestImages() {
+    }
+
+    static BufferedImage create(int megapixels, String type) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        BufferedImage image = new BufferedImage(width, height, imageType(type));
+
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(32)) & 0xff;
+                int green = (y * 255 / height + random.nextInt(32)) & 0xff;
+                int blue = ((x + y) * 255 / (width + height) + random.nextInt(32)) & 0xff;
+                int alpha = 0xc0 + random.nextInt(64);
+                row[x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int imageType(String type) {
+        return switch (type) {
+            case "INT_RGB" -> BufferedImage.TYPE_INT_RGB;
+            case "3BYTE_BGR" -> BufferedImage.TYPE_3BYTE_BGR;
+            case "INT_ARGB" -> BufferedImage.TYPE_INT_ARGB;
+            default -> throw new IllegalArgumentException("Unknown image type: " + type);
+        };
+    }
+}
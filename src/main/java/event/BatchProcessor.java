@@ -0,0 +1,303 @@
+package event;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Applies one filter to every image in a directory without the GUI. Decoding, filtering and
+// encoding run as separate stages with their own threads, connected by bounded queues, so disk
+// and codec work overlaps with the CPU bound filter and only a few images are in memory at once.
+//
+// Usage: BatchProcessor <input dir> <output dir> (--filter <saved name> | --values Brightness=10,Fade=20)
+//        [--format png|jpg] [--decoders n] [--filters n] [--encoders n]
+public class BatchProcessor {
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".gif", ".bmp"};
+
+    // Marks the end of a queue, every stage passes it on once all of its threads are done
+    private static final Job END = new Job(null, null);
+
+    private final Path inputDir;
+    private final Path outputDir;
+    private final Map<String, Integer> filterValues;
+    private final String format;
+    private final int decoders;
+    private final int filters;
+    private final int encoders;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+
+    // Output file of every input, filled before the stages start
+    private final Map<Path, Path> outputFiles = new HashMap<>();
+
+    private record Job(Path file, BufferedImage image) {
+    }
+
+    public BatchProcessor(Path inputDir, Path outputDir, Map<String, Integer> filterValues,
+                          String format, int decoders, int filters, int encoders) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.filterValues = filterValues;
+        this.format = format;
+        this.decoders = decoders;
+        this.filters = filters;
+        this.encoders = encoders;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(inputDir)) {
+            files = listing.filter(BatchProcessor::isImage).sorted().toList();
+        }
+        assignOutputFiles(files);
+
+        // Enough slack for every thread of the next stage to have work waiting
+        BlockingQueue<Job> paths = new ArrayBlockingQueue<>(files.size() + 1);
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(2 * filters);
+        BlockingQueue<Job> filtered = new ArrayBlockingQueue<>(2 * encoders);
+        for (Path file : files) {
+            paths.put(new Job(file, null));
+        }
+        paths.put(END);
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        threads.addAll(startStage("decode", decoders, paths, decoded, this::decode));
+        threads.addAll(startStage("filter", filters, decoded, filtered, this::filter));
+        threads.addAll(startStage("encode", encoders, filtered, null, this::encode));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "Processed %d images (%d failed) in %.2f s: %.1f images/s, %.1f MP/s%n",
+                processed.get(), failed.get(), seconds,
+                processed.get() / seconds, pixels.get() / 1e6 / seconds);
+    }
+
+    // Very large PNG jobs are streamed through in strips right here and go no further
+    private Job decode(Job job) throws IOException {
+        if (format.equals("png")) {
+            Dimension size = StripProcessor.readSize(job.file().toFile());
+            long imagePixels = (long) size.width * size.height;
+            if (imagePixels > StripProcessor.STREAM_THRESHOLD) {
+                StripProcessor.process(job.file().toFile(), outputFile(job).toFile(),
+                        new ImageFilter(filterValues), rows -> {});
+                processed.incrementAndGet();
+                pixels.addAndGet(imagePixels);
+                return null;
+            }
+        }
+
+        BufferedImage image = ImageIO.read(job.file().toFile());
+        if (image == null) {
+            throw new IOException("unsupported image format");
+        }
+        return new Job(job.file(), image);
+    }
+
+    // Images are already spread over the filter threads, so each one is filtered on a single core
+    private Job filter(Job job) {
+        BufferedImage filtered = new ImageFilter(filterValues).withParallelism(1).apply(job.image());
+        return new Job(job.file(), filtered);
+    }
+
+    private Job encode(Job job) throws IOException {
+        BufferedImage image = job.image();
+        if (format.equals("jpg")) {
+            // JPEG has no alpha channel
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = rgb.createGraphics();
+            g2d.drawImage(image, 0, 0, null);
+            g2d.dispose();
+            image = rgb;
+        }
+
+        if (format.equals("png")) {
+            // Every encoder thread has its own image, so each one compresses on a single core
+            new PngEncoder(PngEncoder.Preset.fromProperty()).withParallel(false)
+                    .write(image, outputFile(job).toFile());
+        } else if (!ImageIO.write(image, format, outputFile(job).toFile())) {
+            throw new IOException("no writer for " + format);
+        }
+
+        processed.incrementAndGet();
+        pixels.addAndGet((long) image.getWidth() * image.getHeight());
+        return null;
+    }
+
+    private Path outputFile(Job job) {
+        return outputFiles.get(job.file());
+    }
+
+    // a.jpg becomes a.png. When a.jpg and a.png are both in the batch they keep their extension
+    // (a.jpg.png, a.png.png) instead of overwriting each other; names are compared ignoring case,
+    // as some file systems do.
+    private void assignOutputFiles(List<Path> files) {
+        Map<String, Integer> baseNames = new HashMap<>();
+        for (Path file : files) {
+            baseNames.merge(baseName(file).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+
+        Set<String> taken = new HashSet<>();
+        for (Path file : files) {
+            String base = baseName(file);
+            String name = baseNames.get(base.toLowerCase(Locale.ROOT)) > 1
+                    ? file.getFileName() + "." + format
+                    : base + "." + format;
+            for (int n = 2; !taken.add(name.toLowerCase(Locale.ROOT)); n++) {
+                name = base + "-" + n + "." + format;
+            }
+            outputFiles.put(file, outputDir.resolve(name));
+        }
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    // Returns the job for the next stage, or null if there is nothing left to do for it
+    private interface Step {
+        Job apply(Job job) throws Exception;
+    }
+
+    // Starts threads that take jobs from input until END, run step and pass the result to output.
+    // A failing image is reported and skipped, the rest of the batch carries on; that includes
+    // errors such as running out of memory on one huge image. Whatever happens, the last thread
+    // of the stage to finish passes END on, so the next stage never waits forever.
+    private List<Thread> startStage(String name, int threadCount, BlockingQueue<Job> input,
+                                    BlockingQueue<Job> output, Step step) {
+        AtomicInteger running = new AtomicInteger(threadCount);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Job job = input.take();
+                        if (job == END) {
+                            // Leave it for the other threads of this stage
+                            input.put(END);
+                            break;
+                        }
+                        try {
+                            Job result = step.apply(job);
+                            if (output != null && result != null) {
+                                output.put(result);
+                            }
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            failed.incrementAndGet();
+                            System.err.println("Error processing " + job.file().getFileName() + ": " + e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (running.decrementAndGet() == 0 && output != null) {
+                        try {
+                            output.put(END);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, name + "-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) return Files.isRegularFile(file);
+        }
+        return false;
+    }
+
+    // Parses "Brightness=10,Fade=20" into slider values
+    private static Map<String, Integer> parseValues(String values) {
+        Map<String, Integer> filterValues = new HashMap<>();
+        for (String pair : values.split(",")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected Name=value but got: " + pair);
+            }
+            filterValues.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return filterValues;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BatchProcessor <input dir> <output dir> "
+                + "(--filter <saved name> | --values Brightness=10,Fade=20) "
+                + "[--format png|jpg] [--decoders n] [--filters n] [--encoders n]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 4) usage();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        String filterName = null;
+        Map<String, Integer> filterValues = null;
+        String format = "png";
+        int decoders = Math.max(1, cores / 4);
+        int filters = cores;
+        int encoders = Math.max(1, cores / 2);
+
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) usage();
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--filter" -> filterName = value;
+                case "--values" -> filterValues = parseValues(value);
+                case "--format" -> format = value.toLowerCase(Locale.ROOT).equals("jpeg") ? "jpg" : value.toLowerCase(Locale.ROOT);
+                case "--decoders" -> decoders = Math.max(1, Integer.parseInt(value));
+                case "--filters" -> filters = Math.max(1, Integer.parseInt(value));
+                case "--encoders" -> encoders = Math.max(1, Integer.parseInt(value));
+                default -> usage();
+            }
+        }
+        if (!format.equals("png") && !format.equals("jpg")) usage();
+
+        if (filterName != null) {
+            DatabaseManager dbManager = new DatabaseManager();
+            if (dbManager.initialize()) {
+                filterValues = dbManager.loadFilter(filterName);
+            }
+            dbManager.close();
+            if (filterValues == null) {
+                System.err.println("No saved filter named " + filterName);
+                System.exit(1);
+            }
+        }
+        if (filterValues == null) usage();
+
+        new BatchProcessor(Paths.get(args[0]), Paths.get(args[1]), filterValues,
+                format, decoders, filters, encoders).run();
+    }
+}
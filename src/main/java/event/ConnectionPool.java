@@ -0,0 +1,339 @@
+package event;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps database connections open between calls, so saving or loading a filter doesn't pay for a
+// new TCP connection and login every time. Connections handed out are proxies: close() gives the
+// connection back to the pool, and prepareStatement(sql) reuses the statement prepared earlier on
+// the same connection. Connections idle for a while are validated before being handed out again,
+// and those idle longer than the idle timeout are closed down to the minimum size.
+final class ConnectionPool {
+    // Statements kept prepared per connection
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    // Idle connections older than this are checked with isValid() before use
+    private static final long VALIDATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long maxWaitNanos;
+
+    // Most recently returned first, so the rest can go idle and be evicted
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private int open = 0;
+    private boolean closed = false;
+
+    private long borrowed = 0;
+    private long created = 0;
+    private long evicted = 0;
+    private long invalid = 0;
+    private long waitNanos = 0;
+    private long statementHits = 0;
+    private long statementMisses = 0;
+
+    record Stats(int open, int idle, int active, long borrowed, long created, long evicted, long invalid,
+                 double averageWaitMillis, long statementHits, long statementMisses) {
+    }
+
+    ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                   long idleTimeoutMillis, long maxWaitMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(1, Math.max(minSize, maxSize));
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Waits up to the maximum wait time when every connection is in use
+    Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + maxWaitNanos;
+        while (true) {
+            PooledConnection connection;
+            synchronized (this) {
+                while (true) {
+                    if (closed) throw new SQLException("Connection pool is closed");
+                    connection = idle.pollFirst();
+                    if (connection != null || open < maxSize) break;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("No database connection available after "
+                                + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms, all " + maxSize + " are in use");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", e);
+                    }
+                }
+                // Reserve the slot, the connection itself is opened outside the lock
+                if (connection == null) open++;
+            }
+
+            if (connection == null) {
+                try {
+                    connection = new PooledConnection(DriverManager.getConnection(url, user, password));
+                } catch (SQLException e) {
+                    release(null);
+                    throw e;
+                }
+                synchronized (this) {
+                    created++;
+                }
+            } else if (System.nanoTime() - connection.lastUsed > VALIDATE_AFTER_NANOS && !connection.isValid()) {
+                synchronized (this) {
+                    invalid++;
+                }
+                connection.closePhysical();
+                release(null);
+                continue;
+            }
+
+            synchronized (this) {
+                borrowed++;
+                waitNanos += System.nanoTime() - start;
+            }
+            return connection.proxy();
+        }
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(open, idle.size(), open - idle.size(), borrowed, created, evicted, invalid,
+                borrowed == 0 ? 0 : waitNanos / 1e6 / borrowed, statementHits, statementMisses);
+    }
+
+    // Closes idle connections now; those still in use are closed as they come back
+    void close() {
+        evictor.shutdownNow();
+        Deque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledConnection connection : toClose) {
+            connection.closePhysical();
+        }
+    }
+
+    // Back into the pool, or gone for good when connection is null or the pool has been closed
+    private void release(PooledConnection connection) {
+        boolean closeIt;
+        synchronized (this) {
+            closeIt = connection != null && closed;
+            if (connection == null || closed) {
+                open--;
+            } else {
+                connection.lastUsed = System.nanoTime();
+                idle.addFirst(connection);
+            }
+            notifyAll();
+        }
+        if (closeIt) {
+            connection.closePhysical();
+        }
+    }
+
+    private void evictIdle() {
+        Deque<PooledConnection> toClose = new ArrayDeque<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            // The least recently used sit at the end
+            Iterator<PooledConnection> oldest = idle.descendingIterator();
+            while (open > minSize && oldest.hasNext()) {
+                PooledConnection connection = oldest.next();
+                if (now - connection.lastUsed < idleTimeoutNanos) break;
+                oldest.remove();
+                open--;
+                evicted++;
+                toClose.add(connection);
+            }
+        }
+        for (PooledConnection connection : toClose) {
+            connection.closePhysical();
+        }
+    }
+
+    private synchronized void countStatement(boolean hit) {
+        if (hit) {
+            statementHits++;
+        } else {
+            statementMisses++;
+        }
+    }
+
+    // One physical connection with its prepared statements
+    // Not thread-safe, like a plain JDBC connection it is used by one caller at a time
+    private final class PooledConnection implements InvocationHandler {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() <= STATEMENT_CACHE_SIZE) return false;
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                };
+        private long lastUsed = System.nanoTime();
+
+        // The proxy handed out last; a closed proxy must not touch the connection again
+        private Connection current;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection proxy() {
+            current = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
+            return current;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (current == proxy) {
+                    current = null;
+                    try {
+                        reset();
+                    } catch (SQLException e) {
+                        // Broken, don't hand it out again
+                        closePhysical();
+                        release(null);
+                        return null;
+                    }
+                    release(this);
+                }
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return current != proxy || connection.isClosed();
+            }
+            if (current != proxy) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            if (name.equals("prepareStatement") && args.length == 1) {
+                return prepareStatement((String) args[0]);
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            countStatement(statement != null);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            PreparedStatement cached = statement;
+
+            // close() puts the statement back the way it was prepared and keeps it for the next caller
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (statementProxy, method, args) -> {
+                        if (method.getName().equals("close")) {
+                            try {
+                                resetStatement(cached);
+                            } catch (SQLException e) {
+                                statements.remove(sql, cached);
+                                closeQuietly(cached);
+                            }
+                            return null;
+                        }
+                        if (method.getName().equals("getConnection")) {
+                            return current;
+                        }
+                        try {
+                            return method.invoke(cached, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        // Undoes everything a caller may have set on a cached statement, e.g. the fetch size
+        // exportFilters uses for its cursor, or a batch left behind by an exception
+        private static void resetStatement(PreparedStatement statement) throws SQLException {
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.setFetchSize(0);
+            statement.setMaxRows(0);
+            statement.setQueryTimeout(0);
+        }
+
+        // Leaves the connection as the next borrower expects it
+        private void reset() throws SQLException {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing database connection: " + e.getMessage());
+            }
+        }
+
+        private static void closeQuietly(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // The connection is going away or the statement is no longer needed
+            }
+        }
+    }
+}
@@ -3,166 +3,573 @@ package event;
 import java.sql.*;
 import java.util.*;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 
 import javax.swing.*;
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 
 public class DatabaseManager{
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/filter_app";
+    // reWriteBatchedInserts turns a batch of inserts into multi-row INSERTs, see importFilters
+    private static final String DB_URL = "jdbc:postgresql://localhost:5432/filter_app?reWriteBatchedInserts=true";
     private static final String DB_USER = "postgres";
     private static final String DB_PASSWORD = "admin";
 
+    // Pool sizing, -Dimagefilter.dbPoolMin/-Max, idle connections above the minimum are closed
+    // after -Dimagefilter.dbIdleMillis
+    private static final int POOL_MIN = Integer.getInteger("imagefilter.dbPoolMin", 1);
+    private static final int POOL_MAX = Integer.getInteger("imagefilter.dbPoolMax", 4);
+    private static final long POOL_IDLE_MILLIS = Long.getLong("imagefilter.dbIdleMillis", 60_000);
+    private static final long POOL_WAIT_MILLIS = 10_000;
+
+    // Schema changes in the order they were made, MIGRATIONS[i] takes the schema to version i + 1.
+    // Only ever append: installations remember the version they are at in schema_version.
+    private static final String[][] MIGRATIONS = {
+            {
+                    """
+                    CREATE TABLE IF NOT EXISTS filters (
+                        id SERIAL PRIMARY KEY,
+                        name VARCHAR(100) UNIQUE NOT NULL,
+                        values JSONB NOT NULL,
+                        created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                        updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                    )
+                    """,
+                    """
+                    CREATE OR REPLACE FUNCTION update_updated_at()
+                    RETURNS TRIGGER AS $$
+                    BEGIN
+                        NEW.updated_at = CURRENT_TIMESTAMP;
+                        RETURN NEW;
+                    END;
+                    $$ LANGUAGE plpgsql
+                    """,
+                    "DROP TRIGGER IF EXISTS update_filters_timestamp ON filters",
+                    """
+                    CREATE TRIGGER update_filters_timestamp
+                        BEFORE UPDATE ON filters
+                        FOR EACH ROW
+                        EXECUTE FUNCTION update_updated_at()
+                    """
+            },
+            {
+                    // Tells other instances which filter changed, see PresetCache
+                    """
+                    CREATE OR REPLACE FUNCTION notify_filters_changed()
+                    RETURNS TRIGGER AS $$
+                    BEGIN
+                        IF TG_OP <> 'INSERT' THEN
+                            PERFORM pg_notify('%1$s', OLD.name);
+                        END IF;
+                        IF TG_OP <> 'DELETE' THEN
+                            PERFORM pg_notify('%1$s', NEW.name);
+                        END IF;
+                        RETURN NULL;
+                    END;
+                    $$ LANGUAGE plpgsql
+                    """.formatted(PresetCache.CHANNEL),
+                    "DROP TRIGGER IF EXISTS notify_filters_changed ON filters",
+                    """
+                    CREATE TRIGGER notify_filters_changed
+                        AFTER INSERT OR UPDATE OR DELETE ON filters
+                        FOR EACH ROW
+                        EXECUTE FUNCTION notify_filters_changed()
+                    """
+            },
+            {
+                    // Slider values as a fixed-order smallint[] instead of JSON, see FilterCodec
+                    "ALTER TABLE filters ADD COLUMN params smallint[]",
+                    "UPDATE filters SET params = " + FilterCodec.fromJsonSql("values"),
+                    "ALTER TABLE filters ALTER COLUMN params SET NOT NULL",
+                    "ALTER TABLE filters DROP COLUMN values"
+            },
+            {
+                    // Prefix searches with LIKE 'abc%' can only use an index with pattern ops (unless
+                    // the database uses the C collation); paging in name order uses the unique index
+                    "DROP INDEX IF EXISTS idx_filters_name",
+                    "CREATE INDEX idx_filters_name ON filters (name text_pattern_ops)"
+            }
+    };
+
+    // notify follows changes made by other instances, local only sees this instance's own
+    private static final boolean PRESET_SYNC = !"local".equals(System.getProperty("imagefilter.presetSync"));
+
+    // Rows per batch and transaction when importing, and per round trip when exporting
+    private static final int IMPORT_CHUNK = 500;
+    private static final int EXPORT_FETCH_SIZE = 500;
+
     private final Gson gson;
+    private final ConnectionPool pool;
+    private final PresetCache presets;
+    private volatile boolean ready = false;
 
+    // Doesn't touch the database yet, call initialize() before anything else
     public DatabaseManager(){
         this.gson = new Gson();
-        initializeDatabase();
+        this.pool = createPool();
+        this.presets = new PresetCache(new PresetCache.Loader() {
+            @Override
+            public Map<String, Map<String, Integer>> loadAll() throws SQLException {
+                return queryFilters();
+            }
+
+            @Override
+            public Map<String, Integer> load(String name) throws SQLException {
+                return queryFilter(name);
+            }
+
+            @Override
+            public Map<String, Map<String, Integer>> load(Collection<String> names) throws SQLException {
+                return queryFilters(names);
+            }
+        });
+    }
+
+    private static ConnectionPool createPool() {
+        try {
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            System.err.println("PostgreSQL JDBC Driver not found");
+        }
+        return new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD, POOL_MIN, POOL_MAX,
+                POOL_IDLE_MILLIS, POOL_WAIT_MILLIS);
+    }
+
+    ConnectionPool.Stats getPoolStats() {
+        return pool.getStats();
+    }
+
+    PresetCache getPresetCache() {
+        return presets;
     }
 
-    private void initializeDatabase() {
-        try(Connection connection = getConnection()) {
-            createTablesIfNotExist(connection);
+    // Closes the pooled connections, call once the application is done with the database
+    public void close() {
+        presets.close();
+        pool.close();
+    }
+
+    // Brings the schema up to date and returns whether the database can be used. This waits for
+    // the server, so the GUI calls it off the event dispatch thread.
+    public boolean initialize() {
+        PerfEvents.Database event = new PerfEvents.Database("initialize");
+        try (Connection connection = getConnection()) {
+            migrate(connection);
+            ready = true;
+            if (PRESET_SYNC) {
+                presets.listen(DB_URL, DB_USER, DB_PASSWORD);
+            }
         } catch (SQLException e) {
+            event.failed(e);
             handleDatabaseError("Error initializing database", e);
+        } finally {
+            event.finish(0);
         }
+        return ready;
+    }
+
+    public boolean isReady() {
+        return ready;
     }
 
     private Connection getConnection() throws SQLException {
-        try {
-            Class.forName("org.postgresql.Driver");
-            return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-        }  catch (ClassNotFoundException e) {
-            throw new SQLException("PostgreSQL JDBC Driver not found", e);
-        }
+        return pool.getConnection();
     }
 
 
-    private void createTablesIfNotExist(Connection connection) throws SQLException {
-        String createFilterTable = """
-            CREATE TABLE IF NOT EXISTS filters (
-                id SERIAL PRIMARY KEY,
-                name VARCHAR(100) UNIQUE NOT NULL,
-                values JSONB NOT NULL,
-                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-                updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-            )
-        """;
+    // Runs the migrations this database hasn't seen yet, each in its own transaction. The lock on
+    // schema_version keeps two instances starting at the same time from both running them.
+    private void migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS schema_version (
+                    version INT PRIMARY KEY,
+                    applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                )
+            """);
+        }
+        if (schemaVersion(connection) >= MIGRATIONS.length) return;
 
-        String createUpdateTrigger = """
-            CREATE OR REPLACE FUNCTION update_updated_at()
-            RETURNS TRIGGER AS $$
-            BEGIN
-                NEW.updated_at = CURRENT_TIMESTAMP;
-                RETURN NEW;
-            END;
-            $$ LANGUAGE plpgsql;
-            
-            DROP TRIGGER IF EXISTS update_filters_timestamp ON filters;
-            
-            CREATE TRIGGER update_filters_timestamp
-                BEFORE UPDATE ON filters
-                FOR EACH ROW
-                EXECUTE FUNCTION update_updated_at();
-        """;
+        connection.setAutoCommit(false);
+        try {
+            for (int version = 1; version <= MIGRATIONS.length; version++) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("LOCK TABLE schema_version IN EXCLUSIVE MODE");
+                    if (schemaVersion(connection) < version) {
+                        for (String sql : MIGRATIONS[version - 1]) {
+                            stmt.execute(sql);
+                        }
+                        stmt.execute("INSERT INTO schema_version (version) VALUES (" + version + ")");
+                    }
+                }
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
 
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createFilterTable);
-            stmt.execute(createUpdateTrigger);
+    private int schemaVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
         }
     }
 
     public void saveFilter(String name, Map<String, Integer> filterValues) {
         String sql = """
-            INSERT INTO filters (name, values)
-            VALUES (?, ?::jsonb)
+            INSERT INTO filters (name, params)
+            VALUES (?, ?)
             ON CONFLICT (name)
-            DO UPDATE SET values = EXCLUDED.values, updated_at = CURRENT_TIMESTAMP
+            DO UPDATE SET params = EXCLUDED.params, updated_at = CURRENT_TIMESTAMP
         """;
+        PerfEvents.Database event = new PerfEvents.Database("saveFilter");
+        int rowsAffected = 0;
 
         try (Connection conn = getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            String jsonValues = gson.toJson(filterValues);
             pstmt.setString(1, name);
-            pstmt.setString(2, jsonValues);
+            pstmt.setArray(2, conn.createArrayOf(FilterCodec.SQL_TYPE, FilterCodec.encode(filterValues)));
 
-            int rowsAffected = pstmt.executeUpdate();
+            rowsAffected = pstmt.executeUpdate();
 
             if (rowsAffected > 0) {
+                presets.put(name, FilterCodec.normalize(filterValues));
                 showSuccessMessage("Filter saved successfully!");
             } else {
                 showErrorMessage("Failed to save filter");
             }
 
         } catch (SQLException e) {
+            event.failed(e);
             handleDatabaseError("Error saving filter", e);
+        } finally {
+            event.finish(rowsAffected);
         }
     }
 
+    // Served from the preset cache, sorted by name
     public Map<String, Map<String, Integer>> loadFilters() {
+        PerfEvents.Database event = new PerfEvents.Database("loadFilters");
+        Map<String, Map<String, Integer>> filters = new HashMap<>();
+        try {
+            filters = presets.getAll();
+        } catch (SQLException e) {
+            event.failed(e);
+            handleDatabaseError("Error loading filters", e);
+        } finally {
+            event.finish(filters.size());
+        }
+        return filters;
+    }
+
+    // Values of a single saved filter, or null if there is none with that name
+    public Map<String, Integer> loadFilter(String name) {
+        PerfEvents.Database event = new PerfEvents.Database("loadFilter");
+        Map<String, Integer> values = null;
+        try {
+            values = presets.get(name);
+        } catch (SQLException e) {
+            event.failed(e);
+            handleDatabaseError("Error loading filter", e);
+        } finally {
+            event.finish(values != null ? 1 : 0);
+        }
+        return values;
+    }
+
+    private Map<String, Map<String, Integer>> queryFilters() throws SQLException {
         Map<String, Map<String, Integer>> filters = new HashMap<>();
-        String sql = "SELECT name, values FROM filters ORDER BY name";
+        String sql = "SELECT name, " + FilterCodec.selectColumns("params") + " FROM filters ORDER BY name";
 
         try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
 
             while (rs.next()) {
-                String name = rs.getString("name");
-                String jsonValues = rs.getString("values");
+                filters.put(rs.getString(1), FilterCodec.read(rs, 2));
+            }
+        }
+
+        return filters;
+    }
+
+    private Map<String, Map<String, Integer>> queryFilters(Collection<String> names) throws SQLException {
+        Map<String, Map<String, Integer>> filters = new HashMap<>();
+        String sql = "SELECT name, " + FilterCodec.selectColumns("params") + " FROM filters WHERE name = ANY(?)";
 
-                // Convert JSON string to Map
-                TypeToken<Map<String, Integer>> typeToken = new TypeToken<>() {};
-                Map<String, Integer> filterValues = gson.fromJson(jsonValues, typeToken.getType());
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-                filters.put(name, filterValues);
+            pstmt.setArray(1, conn.createArrayOf("text", names.toArray()));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    filters.put(rs.getString(1), FilterCodec.read(rs, 2));
+                }
             }
+        }
 
-        } catch (SQLException e) {
-            handleDatabaseError("Error loading filters", e);
+        return filters;
+    }
+
+    private Map<String, Integer> queryFilter(String name) throws SQLException {
+        String sql = "SELECT " + FilterCodec.selectColumns("params") + " FROM filters WHERE name = ?";
+
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return FilterCodec.read(rs, 1);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // One page of filter names in name order, optionally only those starting with prefix. Pages
+    // are keyset paginated: pass the last name of the previous page as after ("" for the first),
+    // so every page is an index range scan however deep into the list it is.
+    public List<String> findFilterNames(String prefix, String after, int limit) throws SQLException {
+        String sql = """
+            SELECT name FROM filters
+            WHERE name LIKE ? ESCAPE '\\' AND name > ?
+            ORDER BY name
+            LIMIT ?
+        """;
+        PerfEvents.Database event = new PerfEvents.Database("findFilterNames");
+        List<String> names = new ArrayList<>(limit);
+
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, escapeLike(prefix) + "%");
+            pstmt.setString(2, after);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            event.finish(names.size());
         }
+        return names;
+    }
 
+    // Like findFilterNames, with the values of every filter on the page, e.g. for thumbnails
+    public Map<String, Map<String, Integer>> findFilters(String prefix, String after, int limit) throws SQLException {
+        String sql = """
+            SELECT name, %s FROM filters
+            WHERE name LIKE ? ESCAPE '\\' AND name > ?
+            ORDER BY name
+            LIMIT ?
+        """.formatted(FilterCodec.selectColumns("params"));
+        PerfEvents.Database event = new PerfEvents.Database("findFilters");
+        Map<String, Map<String, Integer>> filters = new LinkedHashMap<>();
+
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, escapeLike(prefix) + "%");
+            pstmt.setString(2, after);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    filters.put(rs.getString(1), FilterCodec.read(rs, 2));
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            event.finish(filters.size());
+        }
         return filters;
     }
 
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
     public void deleteFilter(String name) {
         String sql = "DELETE FROM filters WHERE name = ?";
+        PerfEvents.Database event = new PerfEvents.Database("deleteFilter");
+        int rowsAffected = 0;
 
         try (Connection conn = getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, name);
-            int rowsAffected = pstmt.executeUpdate();
+            rowsAffected = pstmt.executeUpdate();
 
             if (rowsAffected > 0) {
+                presets.remove(name);
                 showSuccessMessage("Filter deleted successfully!");
             } else {
                 showErrorMessage("Filter not found");
             }
 
         } catch (SQLException e) {
+            event.failed(e);
             handleDatabaseError("Error deleting filter", e);
+        } finally {
+            event.finish(rowsAffected);
         }
     }
 
     public List<String> getFilterNames() {
+        PerfEvents.Database event = new PerfEvents.Database("getFilterNames");
         List<String> names = new ArrayList<>();
-        String sql = "SELECT name FROM filters ORDER BY name";
+        try {
+            names = presets.getNames();
+        } catch (SQLException e) {
+            event.failed(e);
+            handleDatabaseError("Error loading filter names", e);
+        } finally {
+            event.finish(names.size());
+        }
+        return names;
+    }
 
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+    // Outcome of importFilters: skipped lines couldn't be parsed, failed rows were in a chunk the
+    // database rejected
+    public record ImportResult(int imported, int skipped, int failed) {
+    }
 
-            while (rs.next()) {
-                names.add(rs.getString("name"));
+    // Reads presets from a file with one {"name": ..., "values": {...}} object per line and upserts
+    // them in batches, each chunk in its own transaction, so a bad chunk doesn't undo the rest.
+    // Reports nothing itself, the caller shows the summary.
+    public ImportResult importFilters(Path file) throws IOException, SQLException {
+        String sql = """
+            INSERT INTO filters (name, params)
+            VALUES (?, ?)
+            ON CONFLICT (name)
+            DO UPDATE SET params = EXCLUDED.params, updated_at = CURRENT_TIMESTAMP
+        """;
+        PerfEvents.Database event = new PerfEvents.Database("importFilters");
+        int imported = 0;
+        int skipped = 0;
+        int failed = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            conn.setAutoCommit(false);
+            Map<String, Map<String, Integer>> chunk = new LinkedHashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    JsonObject preset = gson.fromJson(line, JsonObject.class);
+                    String name = preset.get("name").getAsString();
+                    TypeToken<Map<String, Integer>> typeToken = new TypeToken<>() {};
+                    Map<String, Integer> values = gson.fromJson(preset.get("values"), typeToken.getType());
+                    if (name.isBlank() || values == null) throw new JsonParseException("missing name or values");
+                    chunk.put(name, values);
+                } catch (RuntimeException e) {
+                    skipped++;
+                    continue;
+                }
+
+                if (chunk.size() == IMPORT_CHUNK) {
+                    int written = importChunk(conn, pstmt, chunk);
+                    imported += written;
+                    failed += chunk.size() - written;
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                int written = importChunk(conn, pstmt, chunk);
+                imported += written;
+                failed += chunk.size() - written;
             }
+        } catch (IOException | SQLException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            event.finish(imported);
+        }
+        return new ImportResult(imported, skipped, failed);
+    }
 
+    // Returns the number of rows written, 0 if the chunk was rolled back
+    private int importChunk(Connection conn, PreparedStatement pstmt, Map<String, Map<String, Integer>> chunk)
+            throws SQLException {
+        try {
+            for (Map.Entry<String, Map<String, Integer>> preset : chunk.entrySet()) {
+                pstmt.setString(1, preset.getKey());
+                pstmt.setArray(2, conn.createArrayOf(FilterCodec.SQL_TYPE, FilterCodec.encode(preset.getValue())));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
         } catch (SQLException e) {
-            handleDatabaseError("Error loading filter names", e);
+            pstmt.clearBatch();
+            conn.rollback();
+            System.err.println("Skipped " + chunk.size() + " imported filters: " + e.getMessage());
+            return 0;
         }
 
-        return names;
+        for (Map.Entry<String, Map<String, Integer>> preset : chunk.entrySet()) {
+            presets.put(preset.getKey(), FilterCodec.normalize(preset.getValue()));
+        }
+        return chunk.size();
+    }
+
+    // Writes every saved filter to file in the format importFilters reads. Rows are fetched through
+    // a cursor a batch at a time and written as they come. Returns the number of filters written.
+    public int exportFilters(Path file) throws IOException, SQLException {
+        String sql = "SELECT name, " + FilterCodec.selectColumns("params") + " FROM filters ORDER BY name";
+        PerfEvents.Database event = new PerfEvents.Database("exportFilters");
+        int exported = 0;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+             Connection conn = getConnection()) {
+
+            // PgJDBC only uses a cursor for fetchSize inside a transaction
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setFetchSize(EXPORT_FETCH_SIZE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        writer.write("{\"name\":");
+                        writer.write(gson.toJson(rs.getString(1)));
+                        writer.write(",\"values\":");
+                        writer.write(gson.toJson(FilterCodec.read(rs, 2)));
+                        writer.write("}");
+                        writer.newLine();
+                        exported++;
+                    }
+                }
+            }
+            conn.commit();
+        } catch (IOException | SQLException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            event.finish(exported);
+        }
+        return exported;
     }
 
     private void handleDatabaseError(String message, SQLException e) {
@@ -172,7 +579,10 @@ public class DatabaseManager{
         e.printStackTrace();
     }
 
+    // There are no dialogs without a display (batch mode), errors still reach the console
+    // through handleDatabaseError
     private void showSuccessMessage(String message) {
+        if (GraphicsEnvironment.isHeadless()) return;
         SwingUtilities.invokeLater(() ->
                 JOptionPane.showMessageDialog(
                         null,
@@ -184,6 +594,7 @@ public class DatabaseManager{
     }
 
     private void showErrorMessage(String message) {
+        if (GraphicsEnvironment.isHeadless()) return;
         SwingUtilities.invokeLater(() ->
                 JOptionPane.showMessageDialog(
                         null,
@@ -207,7 +618,7 @@ public class DatabaseManager{
             CREATE TABLE filters (
                 id SERIAL PRIMARY KEY,
                 name VARCHAR(100) UNIQUE NOT NULL,
-                values JSONB NOT NULL,
+                params SMALLINT[] NOT NULL,
                 created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                 updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
             );
@@ -226,14 +637,40 @@ public class DatabaseManager{
                 BEFORE UPDATE ON filters
                 FOR EACH ROW
                 EXECUTE FUNCTION update_updated_at();
+           \s
+            -- Tell other instances which filter changed
+            CREATE OR REPLACE FUNCTION notify_filters_changed()
+            RETURNS TRIGGER AS $$
+            BEGIN
+                IF TG_OP <> 'INSERT' THEN
+                    PERFORM pg_notify('%1$s', OLD.name);
+                END IF;
+                IF TG_OP <> 'DELETE' THEN
+                    PERFORM pg_notify('%1$s', NEW.name);
+                END IF;
+                RETURN NULL;
+            END;
+            $$ LANGUAGE plpgsql;
+           \s
+            CREATE TRIGGER notify_filters_changed
+                AFTER INSERT OR UPDATE OR DELETE ON filters
+                FOR EACH ROW
+                EXECUTE FUNCTION notify_filters_changed();
            \s
             -- Create index for faster searches
-            CREATE INDEX idx_filters_name ON filters(name);
+            CREATE INDEX idx_filters_name ON filters(name text_pattern_ops);
+           \s
+            -- This is the schema every migration leads to, so the application has none left to run
+            CREATE TABLE schema_version (
+                version INT PRIMARY KEY,
+                applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+            );
+            INSERT INTO schema_version (version) SELECT generate_series(1, %2$d);
            \s
             -- Grant necessary permissions
             GRANT ALL PRIVILEGES ON DATABASE filter_app TO postgres;
             GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO postgres;
             GRANT USAGE, SELECT ON ALL SEQUENCES IN SCHEMA public TO postgres;
-       \s""";
+       \s""".formatted(PresetCache.CHANNEL, MIGRATIONS.length);
     }
 }
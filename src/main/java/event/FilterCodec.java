@@ -0,0 +1,65 @@
+package event;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Slider values as stored in filters.params: a smallint[] with one entry per slider in the order
+// of FilterParams.NAMES. Sliders missing from a map are stored as 0; values are clamped to the
+// smallint range, far beyond what the sliders produce.
+final class FilterCodec {
+    static final String SQL_TYPE = "int2";
+
+    private FilterCodec() {
+    }
+
+    static Short[] encode(Map<String, Integer> values) {
+        Short[] params = new Short[FilterParams.NAMES.length];
+        for (int i = 0; i < params.length; i++) {
+            int value = values.getOrDefault(FilterParams.NAMES[i], 0);
+            params[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return params;
+    }
+
+    // The elements of the array column as separate smallint columns, so reading a row is a few
+    // getInt calls instead of parsing an array
+    static String selectColumns(String column) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < FilterParams.NAMES.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(column).append('[').append(i + 1).append(']');
+        }
+        return sql.toString();
+    }
+
+    // Reads the columns of selectColumns, starting at column first
+    static Map<String, Integer> read(ResultSet rs, int first) throws SQLException {
+        Map<String, Integer> values = new HashMap<>();
+        for (int i = 0; i < FilterParams.NAMES.length; i++) {
+            values.put(FilterParams.NAMES[i], rs.getInt(first + i));
+        }
+        return values;
+    }
+
+    // values as they come back after a round trip through the database
+    static Map<String, Integer> normalize(Map<String, Integer> values) {
+        Short[] params = encode(values);
+        Map<String, Integer> normalized = new HashMap<>();
+        for (int i = 0; i < params.length; i++) {
+            normalized.put(FilterParams.NAMES[i], (int) params[i]);
+        }
+        return normalized;
+    }
+
+    // The migration from the old JSONB column: the same array, built in SQL from values
+    static String fromJsonSql(String column) {
+        StringBuilder sql = new StringBuilder("ARRAY[");
+        for (int i = 0; i < FilterParams.NAMES.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append("COALESCE((").append(column).append("->>'").append(FilterParams.NAMES[i]).append("')::int, 0)");
+        }
+        return sql.append("]::smallint[]").toString();
+    }
+}
@@ -0,0 +1,207 @@
+package event;
+
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A filter compiled down to per-channel lookup tables. Brightness, contrast, temperature and fade
+// only depend on a single 0-255 channel value, so they are evaluated once per possible input
+// instead of once per pixel. Saturation mixes channels and sits between contrast and temperature,
+// so when it is active the tables are split into a tone table before it and channel tables after.
+final class FilterKernel {
+    private static final int CACHE_SIZE = 64;
+
+    // The SIMD path needs --add-modules jdk.incubator.vector, -Dimagefilter.vector=false forces the tables
+    private static final boolean VECTORIZED = !"false".equals(System.getProperty("imagefilter.vector"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    // Compiled kernels are immutable, so presets and batch jobs reuse them across renders
+    private static final Map<Key, FilterKernel> cache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, FilterKernel> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private record Key(FilterParams params, ImageFilter.SaturationMode saturationMode) {
+    }
+
+    private final FilterParams params;
+    private final ImageFilter.SaturationMode saturationMode;
+
+    // Brightness and contrast, only used when saturation has to run in between
+    private final int[] tone;
+
+    // Everything else that works per channel, already shifted into place for packing
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    private final float saturationScale;
+    private final float vignetteStrength;
+
+    private FilterKernel(Key key) {
+        this.params = key.params();
+        this.saturationMode = key.saturationMode();
+        this.saturationScale = 1.0f + (params.saturation() / 100.0f);
+        this.vignetteStrength = params.vignette() / 100.0f;
+
+        int[] toneTable = new int[256];
+        for (int v = 0; v < 256; v++) {
+            toneTable[v] = tone(v);
+        }
+
+        boolean split = params.saturation() != 0;
+        this.tone = split ? toneTable : null;
+        this.red = new int[256];
+        this.green = new int[256];
+        this.blue = new int[256];
+
+        int tempShift = (int) ((params.temperature() / 100.0f) * 30);
+        for (int v = 0; v < 256; v++) {
+            int in = split ? v : toneTable[v];
+            red[v] = fade(temperature(in, tempShift)) << 16;
+            green[v] = fade(in) << 8;
+            blue[v] = fade(temperature(in, -tempShift));
+        }
+    }
+
+    static FilterKernel compile(FilterParams params, ImageFilter.SaturationMode saturationMode) {
+        synchronized (cache) {
+            return cache.computeIfAbsent(new Key(params, saturationMode), FilterKernel::new);
+        }
+    }
+
+    FilterParams params() {
+        return params;
+    }
+
+    float vignetteStrength() {
+        return vignetteStrength;
+    }
+
+    private int tone(int v) {
+        if (params.brightness() != 0) {
+            float brightnessScale = 1.0f + (params.brightness() / 100.0f);
+            v = Math.min(255, Math.max(0, (int) (v * brightnessScale)));
+        }
+        if (params.contrast() != 0) {
+            float factor = (259.0f * (params.contrast() + 255)) / (255.0f * (259 - params.contrast()));
+            v = Math.min(255, Math.max(0, (int) (factor * (v - 128) + 128)));
+        }
+        return v;
+    }
+
+    // Warm: increase red, decrease blue
+    // Cool: increase blue, decrease red
+    private int temperature(int v, int shift) {
+        if (params.temperature() == 0) return v;
+        return Math.min(255, Math.max(0, v + shift));
+    }
+
+    // Add fade by mixing with a light gray. Negative fades are not clamped, the overflow is
+    // packed into neighbouring channels just like the original stage did.
+    private int fade(int v) {
+        if (params.fade() == 0) return v;
+        float fadeStrength = params.fade() / 100.0f;
+        return (int) (v * (1 - fadeStrength) + 220 * fadeStrength);
+    }
+
+    // Returns the saturated color as 0xRRGGBB, hsb is scratch space for the exact mode
+    int saturate(int r, int g, int b, float[] hsb) {
+        if (saturationMode == ImageFilter.SaturationMode.FAST) {
+            return saturateFast(r, g, b);
+        }
+        Color.RGBtoHSB(r, g, b, hsb);
+        hsb[1] = Math.min(1.0f, Math.max(0.0f, hsb[1] * saturationScale));
+        return Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]);
+    }
+
+    // Scaling the HSB saturation by k keeps the brightness (the largest channel) and moves every
+    // channel away from it: c' = max - (max - c) * min(k, max / (max - min)). That is evaluated here
+    // in integers and rounded the way HSBtoRGB rounds. Compared against the HSB round-trip over all
+    // 16.7M colors and every slider value, no channel differs by more than 1.
+    private int saturateFast(int r, int g, int b) {
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        if (max == min) {
+            return (r << 16) | (g << 8) | b;
+        }
+
+        int range = max - min;
+        int percent = params.saturation() + 100;
+        if (percent * range > 100 * max) {
+            // Saturation is capped at 1, the smallest channel drops to zero
+            return (scaleFromMax(r, max, max, range) << 16)
+                    | (scaleFromMax(g, max, max, range) << 8)
+                    | scaleFromMax(b, max, max, range);
+        }
+        return (scaleFromMax(r, max, percent, 100) << 16)
+                | (scaleFromMax(g, max, percent, 100) << 8)
+                | scaleFromMax(b, max, percent, 100);
+    }
+
+    // max - (max - c) * numerator / denominator, rounded half up
+    private static int scaleFromMax(int c, int max, int numerator, int denominator) {
+        int scaled = max * denominator - (max - c) * numerator;
+        return (2 * scaled + denominator) / (2 * denominator);
+    }
+
+    // Filters a region of an imageWidth x imageHeight image. Pixel (x, y) of the region is read
+    // from and written to index offset + (y - region.y) * stride + (x - region.x), while position
+    // dependent effects still see absolute image coordinates.
+    void filter(int[] src, int[] dst, int offset, int stride, Rectangle region,
+                int imageWidth, int imageHeight, boolean opaque) {
+        if (VECTORIZED) {
+            VectorKernel.filter(this, src, dst, offset, stride, region, imageWidth, imageHeight, opaque);
+        } else {
+            filterScalar(src, dst, offset, stride, region, imageWidth, imageHeight, opaque);
+        }
+    }
+
+    void filterScalar(int[] src, int[] dst, int offset, int stride, Rectangle region,
+                      int imageWidth, int imageHeight, boolean opaque) {
+        int[] tone = this.tone;
+        int[] red = this.red;
+        int[] green = this.green;
+        int[] blue = this.blue;
+        VignetteMask mask = params.vignette() != 0 ? VignetteMask.forSize(imageWidth, imageHeight) : null;
+        float[] hsb = new float[3];
+
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int row = offset + (y - region.y) * stride - region.x;
+            for (int x = region.x; x < region.x + region.width; x++) {
+                int rgb = src[row + x];
+                if (opaque) {
+                    rgb |= 0xff000000;
+                }
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+
+                if (tone != null) {
+                    int adjustedRGB = saturate(tone[r], tone[g], tone[b], hsb);
+                    r = (adjustedRGB >> 16) & 0xff;
+                    g = (adjustedRGB >> 8) & 0xff;
+                    b = adjustedRGB & 0xff;
+                }
+
+                int argb = (rgb & 0xff000000) | red[r] | green[g] | blue[b];
+
+                if (mask != null) {
+                    float vignetteFactor = mask.factor(x, y, vignetteStrength);
+
+                    // Negative strengths brighten without clamping, exactly like the old stage did
+                    int a = (argb >> 24) & 0xff;
+                    r = (int) (((argb >> 16) & 0xff) * vignetteFactor);
+                    g = (int) (((argb >> 8) & 0xff) * vignetteFactor);
+                    b = (int) ((argb & 0xff) * vignetteFactor);
+                    argb = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+
+                dst[row + x] = argb;
+            }
+        }
+    }
+}
@@ -2,8 +2,11 @@ package event;
 
 import javax.swing.*;
 import javax.swing.event.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.io.File;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class FilterPanel extends JPanel {
@@ -12,20 +15,29 @@ public class FilterPanel extends JPanel {
 
     // UI Components
     private JPanel presetsPanel;
+    private ThumbnailGrid presetGrid;
+    private JPanel savedPanel;
+    private ThumbnailGrid savedGrid;
     private JPanel adjustmentsPanel;
     private Map<String, JSlider> sliders;
 
     // Current filter values
     private Map<String, Integer> filterValues;
 
+    // Set while sliders are moved programmatically, so each one doesn't trigger its own render
+    private boolean updatingSliders = false;
+
+    // Saved filters shown as thumbnails next to the presets, the rest are in Load Filter
+    private static final int SAVED_THUMBNAILS = 24;
+
     // Constants
     private static final int SLIDER_MIN = -100;
     private static final int SLIDER_MAX = 100;
     private static final int SLIDER_INIT = 0;
 
-    public FilterPanel(ImagePanel imagePanel) {
+    public FilterPanel(ImagePanel imagePanel, DatabaseManager dbManager) {
         this.imagePanel = imagePanel;
-        this.dbManager = new DatabaseManager();
+        this.dbManager = dbManager;
         this.sliders = new HashMap<>();
         this.filterValues = new HashMap<>();
 
@@ -34,6 +46,13 @@ public class FilterPanel extends JPanel {
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
         initializeComponents();
+
+        // Thumbnails follow the loaded image
+        imagePanel.addPropertyChangeListener("originalImage", e -> {
+            PixelBuffer image = (PixelBuffer) e.getNewValue();
+            presetGrid.setSource(image);
+            savedGrid.setSource(image);
+        });
     }
 
     private void initializeComponents() {
@@ -46,6 +65,10 @@ public class FilterPanel extends JPanel {
         mainContainer.add(presetsPanel);
         mainContainer.add(Box.createRigidArea(new Dimension(0, 20)));
 
+        // Add saved filters section, filled once the database is ready
+        createSavedPanel();
+        mainContainer.add(savedPanel);
+
         // Add adjustments section
         createAdjustmentsPanel();
         mainContainer.add(adjustmentsPanel);
@@ -72,23 +95,59 @@ public class FilterPanel extends JPanel {
         presetLabel.setFont(new Font("Arial", Font.BOLD, 14));
         presetLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
 
-        JPanel buttonPanel = new JPanel(new GridLayout(0, 2, 5, 5));
-
-        // Add preset filter buttons
-        String[] presets = {
-                "Vintage", "Summer", "Noir", "Sepia",
-                "Vivid", "Fade", "Cool", "Warm"
-        };
-
-        for (String preset : presets) {
-            JButton button = createStyledButton(preset);
-            button.addActionListener(e -> applyPresetFilter(preset));
-            buttonPanel.add(button);
+        // Add preset filter buttons, each showing the current image with the preset applied
+        Map<String, Map<String, Integer>> presets = new LinkedHashMap<>();
+        for (String preset : FilterPresets.NAMES) {
+            presets.put(preset, FilterPresets.values(preset));
         }
+        presetGrid = new ThumbnailGrid((preset, values) -> applyPresetFilter(preset));
+        presetGrid.setFilters(presets);
 
         presetsPanel.add(presetLabel);
         presetsPanel.add(Box.createRigidArea(new Dimension(0, 10)));
-        presetsPanel.add(buttonPanel);
+        presetsPanel.add(presetGrid);
+    }
+
+    private void createSavedPanel() {
+        savedPanel = new JPanel();
+        savedPanel.setLayout(new BoxLayout(savedPanel, BoxLayout.Y_AXIS));
+        savedPanel.setVisible(false);
+
+        JLabel savedLabel = new JLabel("Saved Filters");
+        savedLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        savedLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        // The grid already has the values from findFilters, no need to ask the database again
+        savedGrid = new ThumbnailGrid((name, values) -> applySavedFilter(values));
+
+        savedPanel.add(savedLabel);
+        savedPanel.add(Box.createRigidArea(new Dimension(0, 10)));
+        savedPanel.add(savedGrid);
+        savedPanel.add(Box.createRigidArea(new Dimension(0, 20)));
+    }
+
+    // Shows the first saved filters as thumbnails; called once the database is ready and after
+    // filters were saved or imported
+    public void refreshSavedFilters() {
+        if (!dbManager.isReady()) return;
+        new SwingWorker<Map<String, Map<String, Integer>>, Void>() {
+            @Override
+            protected Map<String, Map<String, Integer>> doInBackground() throws Exception {
+                return dbManager.findFilters("", "", SAVED_THUMBNAILS);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    Map<String, Map<String, Integer>> saved = get();
+                    savedGrid.setFilters(saved);
+                    savedPanel.setVisible(!saved.isEmpty());
+                    savedPanel.revalidate();
+                } catch (Exception e) {
+                    System.err.println("Error loading saved filters: " + e.getMessage());
+                }
+            }
+        }.execute();
     }
 
     private void createAdjustmentsPanel() {
@@ -111,13 +170,6 @@ public class FilterPanel extends JPanel {
         addSlider("Vignette", "Add dark corners effect");
     }
 
-    private JButton createStyledButton(String text) {
-        JButton button = new JButton(text);
-        button.setFocusPainted(false);
-        button.setFont(new Font("Arial", Font.PLAIN, 12));
-        return button;
-    }
-
     private void addSlider(String name, String tooltip) {
         JPanel sliderPanel = new JPanel();
         sliderPanel.setLayout(new BoxLayout(sliderPanel, BoxLayout.Y_AXIS));
@@ -143,7 +195,10 @@ public class FilterPanel extends JPanel {
             valueLabel.setText(String.valueOf(value));
             filterValues.put(name, value);
 
-            if (!source.getValueIsAdjusting()) {
+            if (updatingSliders) return;
+            if (source.getValueIsAdjusting()) {
+                imagePanel.previewFilter(new ImageFilter(new HashMap<>(filterValues)));
+            } else {
                 applyCurrentFilters();
             }
         });
@@ -164,23 +219,13 @@ public class FilterPanel extends JPanel {
         resetAllFilters();
 
         // Apply preset filter settings
-        switch (preset.toLowerCase()) {
-            case "vintage":
-                setSliderValue("Contrast", 20);
-                setSliderValue("Fade", 40);
-                setSliderValue("Temperature", -20);
-                break;
-            case "summer":
-                setSliderValue("Brightness", 10);
-                setSliderValue("Saturation", 30);
-                setSliderValue("Temperature", 20);
-                break;
-            case "noir":
-                setSliderValue("Contrast", 40);
-                setSliderValue("Saturation", -100);
-                setSliderValue("Vignette", 50);
-                break;
-            // Add more presets here
+        updatingSliders = true;
+        try {
+            for (Map.Entry<String, Integer> value : FilterPresets.values(preset).entrySet()) {
+                setSliderValue(value.getKey(), value.getValue());
+            }
+        } finally {
+            updatingSliders = false;
         }
 
         applyCurrentFilters();
@@ -195,13 +240,19 @@ public class FilterPanel extends JPanel {
     }
 
     private void applyCurrentFilters() {
-        ImageFilter filter = new ImageFilter(filterValues);
+        // Renders finish in the background, so they get their own copy of the values
+        ImageFilter filter = new ImageFilter(new HashMap<>(filterValues));
         imagePanel.applyFilter(filter);
     }
 
     private void resetAllFilters() {
-        for (JSlider slider : sliders.values()) {
-            slider.setValue(SLIDER_INIT);
+        updatingSliders = true;
+        try {
+            for (JSlider slider : sliders.values()) {
+                slider.setValue(SLIDER_INIT);
+            }
+        } finally {
+            updatingSliders = false;
         }
         filterValues.replaceAll((k, v) -> SLIDER_INIT);
         imagePanel.resetImage();
@@ -217,38 +268,165 @@ public class FilterPanel extends JPanel {
 
         if (name != null && !name.trim().isEmpty()) {
             dbManager.saveFilter(name, new HashMap<>(filterValues));
+            refreshSavedFilters();
         }
     }
 
+    // Only the values of the filter picked are read from the database, off the event thread
     public void loadSavedFilter() {
-        Map<String, Map<String, Integer>> savedFilters = dbManager.loadFilters();
-        if (savedFilters.isEmpty()) {
-            JOptionPane.showMessageDialog(
-                    this,
-                    "No saved filters found!",
-                    "Load Filter",
-                    JOptionPane.INFORMATION_MESSAGE
-            );
-            return;
-        }
+        String selected = PresetBrowser.choose(this, dbManager);
+        if (selected == null) return;
 
-        String[] filterNames = savedFilters.keySet().toArray(new String[0]);
-        String selected = (String) JOptionPane.showInputDialog(
-                this,
-                "Choose a filter to load:",
-                "Load Filter",
-                JOptionPane.QUESTION_MESSAGE,
-                null,
-                filterNames,
-                filterNames[0]
-        );
+        new SwingWorker<Map<String, Integer>, Void>() {
+            @Override
+            protected Map<String, Integer> doInBackground() {
+                return dbManager.loadFilter(selected);
+            }
 
-        if (selected != null) {
-            Map<String, Integer> values = savedFilters.get(selected);
+            @Override
+            protected void done() {
+                try {
+                    Map<String, Integer> values = get();
+                    if (values != null) {
+                        applySavedFilter(values);
+                    }
+                } catch (Exception e) {
+                    // loadFilter has reported database errors already
+                    System.err.println("Error loading filter: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void applySavedFilter(Map<String, Integer> values) {
+        updatingSliders = true;
+        try {
             for (Map.Entry<String, Integer> entry : values.entrySet()) {
                 setSliderValue(entry.getKey(), entry.getValue());
             }
-            applyCurrentFilters();
+        } finally {
+            updatingSliders = false;
         }
+        applyCurrentFilters();
+    }
+
+    // Preset libraries are files with one JSON object per line, see DatabaseManager.importFilters
+    public void importFilters() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("Filter libraries", "jsonl"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+
+        runInBackground("Import Filters", () -> {
+            DatabaseManager.ImportResult result = dbManager.importFilters(file.toPath());
+            String message = "Imported " + result.imported() + " filters from " + file.getName();
+            if (result.skipped() > 0) {
+                message += "\n" + result.skipped() + " lines could not be read";
+            }
+            if (result.failed() > 0) {
+                message += "\n" + result.failed() + " filters were rejected by the database";
+            }
+            SwingUtilities.invokeLater(this::refreshSavedFilters);
+            return message;
+        });
+    }
+
+    public void exportFilters() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("Filter libraries", "jsonl"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = chooser.getSelectedFile();
+        File file = chosen.getName().toLowerCase().endsWith(".jsonl")
+                ? chosen : new File(chosen.getAbsolutePath() + ".jsonl");
+
+        runInBackground("Export Filters", () ->
+                "Exported " + dbManager.exportFilters(file.toPath()) + " filters to " + file.getName());
+    }
+
+    private interface BackgroundTask {
+        String run() throws Exception;
+    }
+
+    // Runs task off the event dispatch thread and shows the message it returns, or its error
+    private void runInBackground(String title, BackgroundTask task) {
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<String, Void>() {
+            @Override
+            protected String doInBackground() throws Exception {
+                return task.run();
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    JOptionPane.showMessageDialog(FilterPanel.this, get(), title,
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(FilterPanel.this,
+                            title + " failed: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    // Applies the current adjustments to an image file straight into a PNG file, strip by strip,
+    // for images too large to open in the editor
+    public void filterLargeImage() {
+        JFileChooser openChooser = new JFileChooser();
+        openChooser.setFileFilter(new FileNameExtensionFilter(
+                "Images", "jpg", "jpeg", "png", "gif"));
+        if (openChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File input = openChooser.getSelectedFile();
+
+        JFileChooser saveChooser = new JFileChooser();
+        saveChooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
+        if (saveChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = saveChooser.getSelectedFile();
+        File output = chosen.getName().toLowerCase().endsWith(".png")
+                ? chosen : new File(chosen.getAbsolutePath() + ".png");
+
+        ImageFilter filter = new ImageFilter(new HashMap<>(filterValues));
+        ProgressMonitor progress = new ProgressMonitor(this,
+                "Filtering " + input.getName(), null, 0, 100);
+
+        new SwingWorker<Void, Integer>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                int height = StripProcessor.readSize(input).height;
+                StripProcessor.process(input, output, filter,
+                        rows -> setProgress((int) (100L * rows / height)));
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                progress.close();
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(FilterPanel.this,
+                            "Saved " + output.getName(),
+                            "Filter Large Image",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(FilterPanel.this,
+                            "Error filtering image: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+
+            {
+                addPropertyChangeListener(e -> {
+                    if ("progress".equals(e.getPropertyName())) {
+                        progress.setProgress((Integer) e.getNewValue());
+                    }
+                });
+            }
+        }.execute();
     }
 }
@@ -0,0 +1,26 @@
+package event;
+
+import java.util.Map;
+
+// The six slider values of a filter, in the order the pipeline applies them
+record FilterParams(int brightness, int contrast, int saturation, int temperature, int fade, int vignette) {
+    static final String[] NAMES = {
+            "Brightness", "Contrast", "Saturation", "Temperature", "Fade", "Vignette"
+    };
+
+    static FilterParams of(Map<String, Integer> values) {
+        return new FilterParams(
+                values.getOrDefault("Brightness", 0),
+                values.getOrDefault("Contrast", 0),
+                values.getOrDefault("Saturation", 0),
+                values.getOrDefault("Temperature", 0),
+                values.getOrDefault("Fade", 0),
+                values.getOrDefault("Vignette", 0)
+        );
+    }
+
+    boolean isIdentity() {
+        return brightness == 0 && contrast == 0 && saturation == 0
+                && temperature == 0 && fade == 0 && vignette == 0;
+    }
+}
@@ -0,0 +1,40 @@
+package event;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// The preset filters offered next to the sliders, as slider values. Presets without settings of
+// their own leave every slider at zero.
+public final class FilterPresets {
+    public static final String[] NAMES = {
+            "Vintage", "Summer", "Noir", "Sepia",
+            "Vivid", "Fade", "Cool", "Warm"
+    };
+
+    private FilterPresets() {
+    }
+
+    public static Map<String, Integer> values(String preset) {
+        Map<String, Integer> values = new HashMap<>();
+        switch (preset.toLowerCase(Locale.ROOT)) {
+            case "vintage":
+                values.put("Contrast", 20);
+                values.put("Fade", 40);
+                values.put("Temperature", -20);
+                break;
+            case "summer":
+                values.put("Brightness", 10);
+                values.put("Saturation", 30);
+                values.put("Temperature", 20);
+                break;
+            case "noir":
+                values.put("Contrast", 40);
+                values.put("Saturation", -100);
+                values.put("Vignette", 50);
+                break;
+            // Add more presets here
+        }
+        return values;
+    }
+}
@@ -1,248 +1,337 @@
 package event;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.*;
-import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public class ImageFilter {
+    // EXACT round-trips every pixel through HSB like the original filter did, FAST computes the
+    // same saturation change in integers and stays within one level per channel of EXACT
+    public enum SaturationMode {
+        EXACT,
+        FAST
+    }
+
+    // Bands smaller than this are not worth handing to another thread
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    private static volatile int defaultParallelism = Integer.getInteger(
+            "imagefilter.parallelism", Runtime.getRuntime().availableProcessors());
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
     private Map<String, Integer> filterValues;
+    private int parallelism = defaultParallelism;
+    private SaturationMode saturationMode = SaturationMode.EXACT;
+    private BooleanSupplier cancelled = () -> false;
+    private StageCache stageCache;
 
     public ImageFilter(Map<String, Integer> filterValues) {
         this.filterValues = filterValues;
     }
 
-    public BufferedImage apply(BufferedImage original) {
-        BufferedImage filtered = copyImage(original);
-
-        // Apply adjustments in specific order for best results
-        filtered = adjustBrightness(filtered);
-        filtered = adjustContrast(filtered);
-        filtered = adjustSaturation(filtered);
-        filtered = adjustTemperature(filtered);
-        filtered = applyFade(filtered);
-        filtered = applyVignette(filtered);
+    // Number of cores new filters spread their work over, 1 runs everything on the calling thread
+    public static void setDefaultParallelism(int parallelism) {
+        defaultParallelism = Math.max(1, parallelism);
+    }
 
-        return filtered;
+    public ImageFilter withParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
     }
 
-    private BufferedImage copyImage(BufferedImage source) {
-        BufferedImage copy = new BufferedImage(
-                source.getWidth(),
-                source.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
-        Graphics2D g2d = copy.createGraphics();
-        g2d.drawImage(source, 0, 0, null);
-        g2d.dispose();
-        return copy;
+    public ImageFilter withSaturationMode(SaturationMode saturationMode) {
+        this.saturationMode = saturationMode;
+        return this;
     }
 
-    private BufferedImage adjustBrightness(BufferedImage image) {
-        int brightness = filterValues.getOrDefault("Brightness", 0);
-        if (brightness == 0) return image;
+    // Everything that determines the output for a given source image
+    RenderCache.Key cacheKey(long imageId, int level) {
+        return new RenderCache.Key(imageId, level, params(), saturationMode);
+    }
 
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
+    // Lets apply(source, region, target) start from the latest intermediate result it can reuse
+    ImageFilter withStageCache(StageCache stageCache) {
+        this.stageCache = stageCache;
+        return this;
+    }
 
-        float brightnessScale = 1.0f + (brightness / 100.0f);
+    // Same settings with its own cancellation check, for rendering on another thread
+    ImageFilter copy() {
+        return new ImageFilter(filterValues)
+                .withParallelism(parallelism)
+                .withSaturationMode(saturationMode)
+                .withStageCache(stageCache);
+    }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-                int r = (int) (((rgb >> 16) & 0xff) * brightnessScale);
-                int g = (int) (((rgb >> 8) & 0xff) * brightnessScale);
-                int b = (int) ((rgb & 0xff) * brightnessScale);
+    // apply() polls this between row bands and throws a CancellationException once it returns true
+    public ImageFilter withCancellation(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
 
-                // Clamp values
-                r = Math.min(255, Math.max(0, r));
-                g = Math.min(255, Math.max(0, g));
-                b = Math.min(255, Math.max(0, b));
+    public BufferedImage apply(BufferedImage original) {
+        return apply(original, 0, 0, original.getWidth(), original.getHeight());
+    }
 
-                result.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
-            }
+    // Filters a piece of a larger picture: the top-left pixel of tile sits at (originX, originY)
+    // of an imageWidth x imageHeight image, so the vignette lines up with the whole picture
+    public BufferedImage apply(BufferedImage tile, int originX, int originY, int imageWidth, int imageHeight) {
+        int width = tile.getWidth();
+        int height = tile.getHeight();
+        BufferedImage filtered = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = pixels(filtered);
+
+        // Read opaque int rasters directly, anything else is converted once into the output
+        int[] src = tile.getType() == BufferedImage.TYPE_INT_RGB ? directPixels(tile) : null;
+        boolean opaque = src != null;
+        if (src == null) {
+            copyImage(tile, filtered);
+            src = dst;
         }
 
-        return result;
+        PerfEvents.FilterStage event = new PerfEvents.FilterStage();
+        event.stage = "all";
+        event.start();
+        long start = System.nanoTime();
+        run(compile(params()), new Pass(src, dst, 0, width, new Rectangle(originX, originY, width, height),
+                imageWidth, imageHeight, opaque));
+        event.work = System.nanoTime() - start;
+        event.finish(width, height);
+        return filtered;
     }
 
-    private BufferedImage adjustContrast(BufferedImage image) {
-        int contrast = filterValues.getOrDefault("Contrast", 0);
-        if (contrast == 0) return image;
-
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
-
-        float factor = (259.0f * (contrast + 255)) / (255.0f * (259 - contrast));
-
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = rgb & 0xff;
-
-                r = Math.min(255, Math.max(0, (int)(factor * (r - 128) + 128)));
-                g = Math.min(255, Math.max(0, (int)(factor * (g - 128) + 128)));
-                b = Math.min(255, Math.max(0, (int)(factor * (b - 128) + 128)));
-
-                result.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+    // Filters only region of source and writes it to the same place in target, a buffer of the
+    // same size. The rest of target is left alone. Every band of rows is copied onto the heap
+    // once, goes through all kernels there and is copied back.
+    void apply(PixelBuffer source, Rectangle region, PixelBuffer target) {
+        List<Step> steps = new ArrayList<>();
+        List<StageCache.Checkpoint> checkpoints = new ArrayList<>();
+        try {
+            PixelBuffer from = plan(source, region, steps, checkpoints);
+            runSteps(steps, from, from == source && source.isOpaque(), source, region, target);
+        } finally {
+            for (StageCache.Checkpoint checkpoint : checkpoints) {
+                checkpoint.close();
             }
         }
-
-        return result;
     }
 
-    private BufferedImage adjustSaturation(BufferedImage image) {
-        int saturation = filterValues.getOrDefault("Saturation", 0);
-        if (saturation == 0) return image;
-
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
-
-        float saturationScale = 1.0f + (saturation / 100.0f);
-
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-
-                // Convert RGB to HSB
-                float[] hsb = Color.RGBtoHSB(
-                        (rgb >> 16) & 0xff,
-                        (rgb >> 8) & 0xff,
-                        rgb & 0xff,
-                        null
-                );
-
-                // Adjust saturation
-                hsb[1] = Math.min(1.0f, Math.max(0.0f, hsb[1] * saturationScale));
+    private void runSteps(List<Step> steps, PixelBuffer from, boolean opaque, PixelBuffer source,
+                          Rectangle region, PixelBuffer target) {
+        int imageWidth = source.getWidth();
+        int imageHeight = source.getHeight();
+
+        List<PerfEvents.FilterStage> events = new ArrayList<>();
+        for (Step step : steps) {
+            PerfEvents.FilterStage event = new PerfEvents.FilterStage();
+            event.stage = step.name();
+            event.start();
+            events.add(event);
+        }
+        // Time per step, summed over the bands on every thread
+        AtomicLongArray work = new AtomicLongArray(steps.size());
+
+        runBands(new Rectangle(region), band -> {
+            int[] pixels = new int[band.width * band.height];
+            from.read(band, pixels);
+            boolean bandOpaque = opaque;
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                long start = System.nanoTime();
+                step.kernel().filter(pixels, pixels, 0, band.width, band, imageWidth, imageHeight, bandOpaque);
+                work.addAndGet(i, System.nanoTime() - start);
+                bandOpaque = false;
+                if (step.checkpoint() != null) {
+                    step.checkpoint().pixels().write(band, pixels);
+                }
+            }
+            target.write(band, pixels);
+        });
 
-                // Convert back to RGB
-                int adjustedRGB = Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]);
-                result.setRGB(x, y, (a << 24) | (adjustedRGB & 0x00ffffff));
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.checkpoint() != null) {
+                step.checkpoint().markFilled(region);
             }
+            events.get(i).work = work.get(i);
+            events.get(i).finish(region.width, region.height);
         }
-
-        return result;
     }
 
-    private BufferedImage adjustTemperature(BufferedImage image) {
-        int temperature = filterValues.getOrDefault("Temperature", 0);
-        if (temperature == 0) return image;
-
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
-
-        float tempScale = temperature / 100.0f;
+    // A kernel to run and the checkpoint its output is kept in, if any; name is what the kernel
+    // covers, for the Flight Recorder
+    private record Step(String name, FilterKernel kernel, StageCache.Checkpoint checkpoint) {
+    }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = rgb & 0xff;
+    // Picks the latest checkpoint that already covers the region, returns the buffer to start
+    // from and adds the kernels that still have to run. Every checkpoint looked up is added to
+    // checkpoints, to be closed once the pass is done. The expensive saturation stage and
+    // everything before the vignette are kept as checkpoints; the kernels that continue from one
+    // are the same filter with the earlier sliders at zero, which picks up the packed pixels
+    // exactly where the single pass would have. New checkpoints are only made when all those the
+    // pass would fill fit in the cache together, otherwise making the second would evict the first.
+    private PixelBuffer plan(PixelBuffer source, Rectangle region, List<Step> steps,
+                             List<StageCache.Checkpoint> checkpoints) {
+        FilterParams params = params();
+        if (stageCache == null) {
+            steps.add(new Step("all", compile(params), null));
+            return source;
+        }
 
-                // Warm: increase red, decrease blue
-                // Cool: increase blue, decrease red
-                r = Math.min(255, Math.max(0, r + (int)(tempScale * 30)));
-                b = Math.min(255, Math.max(0, b - (int)(tempScale * 30)));
+        boolean create = stageCache.fits(source,
+                (params.vignette() != 0 ? 1 : 0) + (params.saturation() != 0 ? 1 : 0));
+        FilterKernel vignette = compile(new FilterParams(0, 0, 0, 0, 0, params.vignette()));
+        StageCache.Checkpoint colored = params.vignette() != 0
+                ? stageCache.get(source, StageCache.Stage.COLORED, params, saturationMode, create) : null;
+        boolean coloredHit = colored != null && colored.covers(region);
+        if (colored != null) {
+            checkpoints.add(colored);
+        }
+        if (params.vignette() != 0) {
+            stageCache.recordLookup(coloredHit);
+        }
+        if (coloredHit) {
+            steps.add(new Step("vignette", vignette, null));
+            return colored.pixels();
+        }
 
-                result.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+        PixelBuffer from = source;
+        FilterParams remaining = params;
+        StageCache.Checkpoint saturated = params.saturation() != 0
+                ? stageCache.get(source, StageCache.Stage.SATURATED, params, saturationMode, create) : null;
+        boolean saturatedHit = saturated != null && saturated.covers(region);
+        if (params.saturation() != 0) {
+            stageCache.recordLookup(saturatedHit);
+        }
+        if (saturated != null) {
+            checkpoints.add(saturated);
+            if (saturatedHit) {
+                from = saturated.pixels();
+            } else {
+                steps.add(new Step("brightness-saturation",
+                        compile(StageCache.upstream(params, StageCache.Stage.SATURATED)), saturated));
             }
+            remaining = new FilterParams(0, 0, 0, params.temperature(), params.fade(), params.vignette());
         }
 
-        return result;
+        String first = remaining == params ? "brightness" : "temperature";
+        if (colored == null) {
+            steps.add(new Step(first + "-vignette", compile(remaining), null));
+        } else {
+            steps.add(new Step(first + "-fade",
+                    compile(StageCache.upstream(remaining, StageCache.Stage.COLORED)), colored));
+            steps.add(new Step("vignette", vignette, null));
+        }
+        return from;
     }
 
-    private BufferedImage applyFade(BufferedImage image) {
-        int fade = filterValues.getOrDefault("Fade", 0);
-        if (fade == 0) return image;
-
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
-
-        float fadeStrength = fade / 100.0f;
+    private FilterParams params() {
+        return FilterParams.of(filterValues);
+    }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = rgb & 0xff;
+    private FilterKernel compile(FilterParams params) {
+        return FilterKernel.compile(params, saturationMode);
+    }
 
-                // Add fade by mixing with a light gray
-                r = (int)(r * (1 - fadeStrength) + 220 * fadeStrength);
-                g = (int)(g * (1 - fadeStrength) + 220 * fadeStrength);
-                b = (int)(b * (1 - fadeStrength) + 220 * fadeStrength);
+    private void run(FilterKernel kernel, Pass pass) {
+        runBands(pass.region, band -> kernel.filter(pass.src, pass.dst,
+                pass.offset + (band.y - pass.region.y) * pass.stride, pass.stride, band,
+                pass.imageWidth, pass.imageHeight, pass.opaque));
+    }
 
-                result.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+    // Hands region to action in bands of whole rows, spread over the pool when it is big enough
+    private void runBands(Rectangle region, Consumer<Rectangle> action) {
+        int width = region.width;
+        int height = region.height;
+        int bandRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width));
+
+        if (parallelism > 1 && (long) width * height > MIN_BAND_PIXELS) {
+            ForkJoinPool pool = pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+            pool.invoke(new BandTask(region, action, 0, height, Math.max(bandRows, height / (parallelism * 4))));
+        } else {
+            for (int row = 0; row < height; row += bandRows) {
+                runBand(region, action, row, Math.min(height, row + bandRows));
             }
         }
-
-        return result;
     }
 
-    private BufferedImage applyVignette(BufferedImage image) {
-        int vignette = filterValues.getOrDefault("Vignette", 0);
-        if (vignette == 0) return image;
+    // Every band checks for cancellation first, so a superseded render stops within one band
+    private void runBand(Rectangle region, Consumer<Rectangle> action, int fromRow, int toRow) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Render was superseded");
+        }
+        action.accept(new Rectangle(region.x, region.y + fromRow, region.width, toRow - fromRow));
+    }
 
-        BufferedImage result = new BufferedImage(
-                image.getWidth(),
-                image.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
+    // Where a region lives in the pixel arrays: pixel (x, y) of the region is at
+    // offset + (y - region.y) * stride + (x - region.x)
+    private record Pass(int[] src, int[] dst, int offset, int stride, Rectangle region,
+                        int imageWidth, int imageHeight, boolean opaque) {
+    }
 
-        float vignetteStrength = vignette / 100.0f;
-        int centerX = image.getWidth() / 2;
-        int centerY = image.getHeight() / 2;
-        float maxDistance = (float) Math.sqrt(centerX * centerX + centerY * centerY);
+    // Splits a region into row bands. Every pixel is computed independently from its absolute
+    // coordinates, so the result is bit-identical to the sequential pass however the rows are split.
+    private class BandTask extends RecursiveAction {
+        private final Rectangle region;
+        private final Consumer<Rectangle> action;
+        private final int fromRow;
+        private final int toRow;
+        private final int minRows;
+
+        BandTask(Rectangle region, Consumer<Rectangle> action, int fromRow, int toRow, int minRows) {
+            this.region = region;
+            this.action = action;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.minRows = minRows;
+        }
 
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                int rgb = image.getRGB(x, y);
-                int a = (rgb >> 24) & 0xff;
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = rgb & 0xff;
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= minRows) {
+                runBand(region, action, fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new BandTask(region, action, fromRow, middle, minRows),
+                    new BandTask(region, action, middle, toRow, minRows));
+        }
+    }
 
-                // Calculate distance from center
-                float dx = x - centerX;
-                float dy = y - centerY;
-                float distance = (float) Math.sqrt(dx * dx + dy * dy);
-                float vignetteFactor = 1.0f - (distance / maxDistance) * vignetteStrength;
-                vignetteFactor = Math.max(0.0f, vignetteFactor);
+    private void copyImage(BufferedImage source, BufferedImage target) {
+        Graphics2D g2d = target.createGraphics();
+        g2d.drawImage(source, 0, 0, null);
+        g2d.dispose();
+    }
 
-                // Apply vignette
-                r = (int)(r * vignetteFactor);
-                g = (int)(g * vignetteFactor);
-                b = (int)(b * vignetteFactor);
+    static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
 
-                result.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
-            }
+    // Returns the backing array when it holds exactly width * height packed pixels, else null
+    static int[] directPixels(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt buffer)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)) {
+            return null;
         }
-
-        return result;
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || sampleModel.getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        return buffer.getData();
     }
 }
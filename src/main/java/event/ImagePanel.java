@@ -1,7 +1,6 @@
 package event;
 
 import javax.swing.*;
-import javax.imageio.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -9,8 +8,48 @@ import java.awt.event.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class ImagePanel extends JPanel {
-    private BufferedImage originalImage;
-    private BufferedImage currentImage;
+    // Pixels live off the heap, only the part on screen is copied into a BufferedImage
+    private PixelBuffer originalImage;
+    private ImagePyramid pyramid;
+
+    // Renders are cached per loaded image, imageId tells the images apart
+    private long imageId = 0;
+    private final RenderCache renderCache =
+            new RenderCache(Long.getLong("imagefilter.renderCacheBytes", 512L << 20));
+    private final StageCache stageCache =
+            new StageCache(Long.getLong("imagefilter.stageCacheBytes", 256L << 20));
+
+    // What is on screen: pyramid level currentLevel, filtered with currentFilter unless that is null
+    private int currentLevel;
+    private ImageFilter currentFilter;
+
+    // Filtered tiles on screen, null while no filter is applied.
+    // pendingRender is a newer filter or level that hasn't rendered its visible tiles yet.
+    // Each holds a reference of its own, so neither is released while shown or being rendered.
+    private TiledRender render;
+    private TiledRender pendingRender;
+
+    // Heap copy of the visible part of the current level, remade when the view or content changes
+    private BufferedImage view;
+    private Rectangle viewBounds;
+
+    // Low resolution render of the visible area shown while a slider is dragged
+    private BufferedImage previewImage;
+    private Rectangle previewBounds;
+
+    // Renders run in the background, newer requests cancel older ones
+    private final RenderScheduler scheduler = new RenderScheduler(e ->
+            JOptionPane.showMessageDialog(this,
+                    "Error applying filter: " + e.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE));
+
+    // Recent render and preview timings, shown by the performance overlay
+    private final PerfStats renderStats = new PerfStats();
+    private final PerfStats previewStats = new PerfStats();
+    private boolean overlayVisible = false;
+    private boolean exporting = false;
+
     private double scale = 1.0;
     private int imageX = 0;
     private int imageY = 0;
@@ -28,12 +67,13 @@ public class ImagePanel extends JPanel {
     private void setupMouseListeners() {
         // Mouse wheel for zooming
         addMouseWheelListener(e -> {
-            if (currentImage != null) {
+            if (originalImage != null) {
                 if (e.getWheelRotation() < 0) {
                     scale *= 1.1;
                 } else {
                     scale /= 1.1;
                 }
+                updateLevel();
                 repaint();
             }
         });
@@ -47,11 +87,12 @@ public class ImagePanel extends JPanel {
 
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (dragStart != null && currentImage != null) {
+                if (dragStart != null && originalImage != null) {
                     Point current = e.getPoint();
                     imageX += (current.x - dragStart.x);
                     imageY += (current.y - dragStart.y);
                     dragStart = current;
+                    renderVisibleTiles();
                     repaint();
                 }
             }
@@ -72,23 +113,80 @@ public class ImagePanel extends JPanel {
                 "Images", "jpg", "jpeg", "png", "gif");
         chooser.setFileFilter(filter);
 
-        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                originalImage = ImageIO.read(chooser.getSelectedFile());
-                resetImage();
-                centerImage();
-                repaint();
-            } catch (Exception e) {
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+        try {
+            Dimension size = StripProcessor.readSize(file);
+            if ((long) size.width * size.height > StripProcessor.STREAM_THRESHOLD) {
                 JOptionPane.showMessageDialog(this,
-                        "Error loading image: " + e.getMessage(),
+                        String.format("This image is too large to open (%d x %d). "
+                                + "Use File > Filter Large Image... to filter it into a new file.",
+                                size.width, size.height),
                         "Error",
                         JOptionPane.ERROR_MESSAGE);
+                return;
             }
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this,
+                    "Error loading image: " + e.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
         }
+
+        // Decoding a large photo takes a while, the current image stays usable until it is done
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<PixelBuffer, Void>() {
+            @Override
+            protected PixelBuffer doInBackground() throws Exception {
+                PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("loadImage");
+                PixelBuffer loaded = PixelBuffer.read(file);
+                event.finish(loaded.getWidth(), loaded.getHeight());
+                return loaded;
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    showImage(get());
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(ImagePanel.this,
+                            "Error loading image: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    // Replaces the image on screen with loaded, which the panel takes over
+    private void showImage(PixelBuffer loaded) {
+        if (pyramid != null) {
+            pyramid.close();
+        }
+        PixelBuffer previous = originalImage;
+        originalImage = loaded;
+        imageId++;
+        renderCache.clear();
+        stageCache.clear();
+        pyramid = ImagePyramid.build(loaded, () ->
+                SwingUtilities.invokeLater(() -> {
+                    // Finer zoomed out levels may have become available
+                    if (originalImage == loaded) {
+                        updateLevel();
+                    }
+                }));
+        resetImage();
+        centerImage();
+        repaint();
+        // Lets the filter panel redo its thumbnails
+        firePropertyChange("originalImage", previous, loaded);
     }
 
     public void saveImage() {
-        if (currentImage == null) {
+        if (originalImage == null) {
             JOptionPane.showMessageDialog(this,
                     "No image to save!",
                     "Error",
@@ -101,56 +199,313 @@ public class ImagePanel extends JPanel {
                 "PNG Images", "png");
         chooser.setFileFilter(filter);
 
-        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File file = chooser.getSelectedFile();
-                if (!file.getName().toLowerCase().endsWith(".png")) {
-                    file = new File(file.getAbsolutePath() + ".png");
+        if (exporting || chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = chooser.getSelectedFile();
+        File file = chosen.getName().toLowerCase().endsWith(".png")
+                ? chosen : new File(chosen.getAbsolutePath() + ".png");
+
+        // Renders and encodes in the background; the image and filter can change meanwhile, the
+        // export keeps its own references to what it saves
+        TiledRender full = currentFilter != null ? exportRender() : null;
+        PixelBuffer unfiltered = full == null ? pyramid.getLevel(0).retain() : null;
+        ProgressMonitor progress = new ProgressMonitor(this, "Saving " + file.getName(), null, 0, 100);
+        setExporting(true);
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                // Released here rather than in done(), which runs as soon as the export is cancelled
+                try {
+                    PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("saveImage");
+                    PixelBuffer exported = full != null ? full.getImage() : unfiltered;
+                    if (full != null) {
+                        // A row of tiles at a time, so progress moves and cancelling stops soon
+                        int width = exported.getWidth();
+                        int height = exported.getHeight();
+                        for (int y = 0; y < height; y += TiledRender.TILE_SIZE) {
+                            full.render(new Rectangle(0, y, width, TiledRender.TILE_SIZE), this::isCancelled);
+                            setProgress((int) (90L * Math.min(height, y + TiledRender.TILE_SIZE) / height));
+                        }
+                    }
+                    setProgress(90);
+                    new PngEncoder(PngEncoder.Preset.fromProperty()).write(exported, file);
+                    event.finish(exported.getWidth(), exported.getHeight());
+                    return null;
+                } finally {
+                    if (full != null) {
+                        full.close();
+                    } else {
+                        unfiltered.close();
+                    }
+                }
+            }
+
+            @Override
+            protected void done() {
+                progress.close();
+                setExporting(false);
+                if (isCancelled()) return;
+                try {
+                    get();
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(ImagePanel.this,
+                            "Error saving image: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
                 }
-                ImageIO.write(currentImage, "png", file);
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this,
-                        "Error saving image: " + e.getMessage(),
-                        "Error",
-                        JOptionPane.ERROR_MESSAGE);
             }
+
+            {
+                addPropertyChangeListener(e -> {
+                    if ("progress".equals(e.getPropertyName())) {
+                        progress.setProgress((Integer) e.getNewValue());
+                        if ((Integer) e.getNewValue() >= 90) {
+                            progress.setNote("Writing PNG...");
+                        }
+                    }
+                    if (progress.isCanceled()) {
+                        cancel(false);
+                    }
+                });
+            }
+        }.execute();
+    }
+
+    // Lets the menu disable saving while an export runs
+    private void setExporting(boolean exporting) {
+        boolean previous = this.exporting;
+        this.exporting = exporting;
+        firePropertyChange("exporting", previous, exporting);
+    }
+
+    // The screen may show a reduced level or only some tiles, exports are always complete and full
+    // size. Returns the level 0 render of the current filter with a reference the caller closes;
+    // it is cached like any other render, so the work isn't lost if the filter is shown again.
+    private TiledRender exportRender() {
+        if (pendingRender == null && render != null && render.getLevel() == 0) {
+            return render.retain();
         }
+        RenderCache.Key key = currentFilter.cacheKey(imageId, 0);
+        TiledRender full = renderCache.get(key);
+        if (full != null) {
+            return full.retain();
+        }
+        full = new TiledRender(pyramid.getLevel(0), 0, currentFilter);
+        renderCache.put(key, full.retain());
+        return full;
     }
 
     public void applyFilter(ImageFilter filter) {
         if (originalImage == null) return;
 
-        currentImage = filter.apply(originalImage);
+        // Only the lookup and scheduling, the render itself is the "render" operation
+        PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("applyFilter");
+        currentFilter = filter.withStageCache(stageCache);
+        int level = pyramid.levelFor(scale);
+        RenderCache.Key key = filter.cacheKey(imageId, level);
+        TiledRender cached = renderCache.get(key);
+        if (cached != null) {
+            // Seen before: show it right away and only fill in tiles it never rendered
+            scheduler.cancel();
+            setPendingRender(null);
+            showRender(cached);
+            renderVisibleTiles();
+            event.finish(originalImage.getWidth(), originalImage.getHeight());
+            return;
+        }
+
+        TiledRender created = new TiledRender(pyramid.getLevel(level), level, filter);
+        setPendingRender(created);
+        // The cache takes over the reference created with the render
+        renderCache.put(key, created);
+        renderTiles(created);
+        event.finish(originalImage.getWidth(), originalImage.getHeight());
+    }
+
+    // Switches to the pyramid level that best fits the zoom, or fills in newly visible tiles
+    private void updateLevel() {
+        if (originalImage == null) return;
+
+        int level = pyramid.levelFor(scale);
+        if (currentFilter == null) {
+            currentLevel = level;
+            view = null;
+            return;
+        }
+
+        TiledRender target = pendingRender != null ? pendingRender : render;
+        if (target == null || target.getLevel() != level) {
+            applyFilter(currentFilter);
+        } else {
+            renderVisibleTiles();
+        }
+    }
+
+    // Fills in whatever part of the filtered image has just scrolled or zoomed into view
+    private void renderVisibleTiles() {
+        TiledRender target = pendingRender != null ? pendingRender : render;
+        if (target != null && target.isMissing(getRenderArea(target.getLevel()))) {
+            renderTiles(target);
+        }
+    }
+
+    private void renderTiles(TiledRender target) {
+        Rectangle area = getRenderArea(target.getLevel());
+        target.retain();
+        scheduler.submit(
+                cancelled -> {
+                    PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("render");
+                    long start = System.nanoTime();
+                    long pixels = target.render(area, cancelled);
+                    if (pixels > 0) {
+                        renderStats.record(System.nanoTime() - start, pixels);
+                    }
+                    event.finish(area.width, area.height);
+                    return target;
+                },
+                rendered -> {
+                    showRender(rendered);
+                    if (rendered == pendingRender) {
+                        setPendingRender(null);
+                    }
+                },
+                target::close);
+    }
+
+    private void showRender(TiledRender rendered) {
+        TiledRender previous = render;
+        render = rendered.retain();
+        if (previous != null) {
+            previous.close();
+        }
+        currentLevel = rendered.getLevel();
+        view = null;
+        previewImage = null;
         repaint();
     }
 
-    public void resetImage() {
+    private void setPendingRender(TiledRender rendering) {
+        TiledRender previous = pendingRender;
+        pendingRender = rendering != null ? rendering.retain() : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // The visible part of a pyramid level plus a margin, so short pans don't reveal unfiltered tiles
+    private Rectangle getRenderArea(int level) {
+        Rectangle area = toLevel(getVisibleSourceBounds(), level);
+        area.grow(area.width / 4, area.height / 4);
+        return area;
+    }
+
+    // Converts original image pixels to pixels of a pyramid level, rounding outwards
+    private static Rectangle toLevel(Rectangle bounds, int level) {
+        int factor = 1 << level;
+        int left = bounds.x / factor;
+        int top = bounds.y / factor;
+        int right = (bounds.x + bounds.width + factor - 1) / factor;
+        int bottom = (bounds.y + bounds.height + factor - 1) / factor;
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    // Renders only what is on screen, at screen resolution, so it is cheap enough for every slider tick
+    public void previewFilter(ImageFilter filter) {
         if (originalImage == null) return;
 
-        currentImage = new BufferedImage(
-                originalImage.getWidth(),
-                originalImage.getHeight(),
-                BufferedImage.TYPE_INT_ARGB
-        );
+        Rectangle visible = getVisibleSourceBounds();
+        if (visible.isEmpty()) return;
 
-        Graphics2D g2d = currentImage.createGraphics();
-        g2d.drawImage(originalImage, 0, 0, null);
+        // Scaled down from the level that is on screen anyway, covering whole pixels of it
+        int level = pyramid.levelFor(scale);
+        Rectangle levelBounds = toLevel(visible, level);
+        Rectangle covered = new Rectangle(levelBounds.x << level, levelBounds.y << level,
+                levelBounds.width << level, levelBounds.height << level);
+        PixelBuffer source = pyramid.getLevel(level).retain();
+        double proxyScale = Math.min(1.0, scale);
+        scheduler.submit(
+                cancelled -> {
+                    PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("preview");
+                    long start = System.nanoTime();
+                    BufferedImage preview = renderPreview(filter.withCancellation(cancelled),
+                            source.toImage(levelBounds), covered, proxyScale);
+                    previewStats.record(System.nanoTime() - start, (long) preview.getWidth() * preview.getHeight());
+                    event.finish(preview.getWidth(), preview.getHeight());
+                    return preview;
+                },
+                preview -> {
+                    previewImage = preview;
+                    previewBounds = covered;
+                    repaint();
+                },
+                source::close);
+    }
+
+    // source shows the area visible covers, which is in original image pixels
+    private BufferedImage renderPreview(ImageFilter filter, BufferedImage source, Rectangle visible, double proxyScale) {
+        int proxyWidth = Math.max(1, (int) Math.ceil(visible.width * proxyScale));
+        int proxyHeight = Math.max(1, (int) Math.ceil(visible.height * proxyScale));
+
+        BufferedImage proxy = new BufferedImage(proxyWidth, proxyHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = proxy.createGraphics();
+        g2d.setRenderingHint(
+                RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR
+        );
+        g2d.drawImage(source, 0, 0, proxyWidth, proxyHeight, null);
         g2d.dispose();
 
+        // Vignette is placed relative to the whole image scaled down the same way
+        return filter.withSaturationMode(ImageFilter.SaturationMode.FAST).apply(proxy,
+                (int) (visible.x * proxyScale),
+                (int) (visible.y * proxyScale),
+                (int) Math.ceil(originalImage.getWidth() * proxyScale),
+                (int) Math.ceil(originalImage.getHeight() * proxyScale));
+    }
+
+    // Part of the original image currently inside the component, in image pixels
+    private Rectangle getVisibleSourceBounds() {
+        int left = (int) Math.floor(-imageX / scale);
+        int top = (int) Math.floor(-imageY / scale);
+        int right = (int) Math.ceil((getWidth() - imageX) / scale);
+        int bottom = (int) Math.ceil((getHeight() - imageY) / scale);
+
+        Rectangle visible = new Rectangle(left, top, right - left, bottom - top);
+        return visible.intersection(new Rectangle(0, 0, originalImage.getWidth(), originalImage.getHeight()));
+    }
+
+    public void resetImage() {
+        if (originalImage == null) return;
+
+        scheduler.cancel();
+        setPendingRender(null);
+        if (render != null) {
+            render.close();
+            render = null;
+        }
+        previewImage = null;
+        currentFilter = null;
+
+        // Unfiltered levels are shown as they are, nothing draws into them
         scale = 1.0;
+        currentLevel = 0;
+        view = null;
+
         centerImage();
         repaint();
     }
 
     private void centerImage() {
-        if (currentImage != null) {
-            imageX = (getWidth() - currentImage.getWidth()) / 2;
-            imageY = (getHeight() - currentImage.getHeight()) / 2;
+        if (originalImage != null) {
+            imageX = (getWidth() - originalImage.getWidth()) / 2;
+            imageY = (getHeight() - originalImage.getHeight()) / 2;
         }
     }
 
     @Override
     protected void paintComponent(Graphics g) {
+        PerfEvents.ImageOperation event = new PerfEvents.ImageOperation("paint");
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
 
@@ -160,16 +515,37 @@ public class ImagePanel extends JPanel {
                 RenderingHints.VALUE_ANTIALIAS_ON
         );
 
-        if (currentImage != null) {
+        if (originalImage != null) {
             // Calculate scaled dimensions
-            int scaledWidth = (int) (currentImage.getWidth() * scale);
-            int scaledHeight = (int) (currentImage.getHeight() * scale);
+            int scaledWidth = (int) (originalImage.getWidth() * scale);
+            int scaledHeight = (int) (originalImage.getHeight() * scale);
 
-            // Draw the image
-            g2d.drawImage(currentImage,
-                    imageX, imageY,
-                    scaledWidth, scaledHeight,
-                    null);
+            // Draw the visible part of the current level, which may be reduced
+            Rectangle visible = toLevel(getVisibleSourceBounds(), currentLevel);
+            if (!visible.isEmpty()) {
+                if (view == null || !visible.equals(viewBounds)) {
+                    view = render != null ? render.snapshot(visible) : pyramid.getLevel(currentLevel).toImage(visible);
+                    viewBounds = visible;
+                }
+                double levelScale = scale * (1 << currentLevel);
+                g2d.drawImage(view,
+                        imageX + (int) (visible.x * levelScale),
+                        imageY + (int) (visible.y * levelScale),
+                        imageX + (int) Math.ceil((visible.x + visible.width) * levelScale),
+                        imageY + (int) Math.ceil((visible.y + visible.height) * levelScale),
+                        0, 0, visible.width, visible.height,
+                        null);
+            }
+
+            // Draw the slider preview over the part of the image it covers
+            if (previewImage != null) {
+                g2d.drawImage(previewImage,
+                        imageX + (int) (previewBounds.x * scale),
+                        imageY + (int) (previewBounds.y * scale),
+                        (int) Math.ceil(previewBounds.width * scale),
+                        (int) Math.ceil(previewBounds.height * scale),
+                        null);
+            }
 
             // Draw border around the image
             g2d.setColor(new Color(180, 180, 180));
@@ -189,10 +565,55 @@ public class ImagePanel extends JPanel {
                     (getWidth() - msgWidth) / 2,
                     (getHeight() - msgHeight) / 2);
         }
+
+        if (overlayVisible) {
+            drawOverlay(g2d);
+        }
+        event.finish(getWidth(), getHeight());
+    }
+
+    public void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+        repaint();
+    }
+
+    // Rolling render latency, throughput and cache hit rates in the top left corner
+    private void drawOverlay(Graphics2D g2d) {
+        String[] lines = {
+                String.format("Render   p50 %6.1f ms  p99 %6.1f ms  %6.1f MP/s  (%d)",
+                        renderStats.percentileMillis(0.5), renderStats.percentileMillis(0.99),
+                        renderStats.megapixelsPerSecond(), renderStats.getCount()),
+                String.format("Preview  p50 %6.1f ms  p99 %6.1f ms  %6.1f MP/s  (%d)",
+                        previewStats.percentileMillis(0.5), previewStats.percentileMillis(0.99),
+                        previewStats.megapixelsPerSecond(), previewStats.getCount()),
+                String.format("Render cache %3.0f%% hits, %d MB   Stage cache %3.0f%% hits",
+                        100 * renderCache.getHitRate(), renderCache.getUsedBytes() >> 20,
+                        100 * stageCache.getHitRate())
+        };
+
+        g2d.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        FontMetrics fm = g2d.getFontMetrics();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        g2d.setColor(new Color(0, 0, 0, 170));
+        g2d.fillRect(8, 8, width + 16, lines.length * fm.getHeight() + 12);
+        g2d.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++) {
+            g2d.drawString(lines[i], 16, 14 + fm.getAscent() + i * fm.getHeight());
+        }
+    }
+
+    RenderCache getRenderCache() {
+        return renderCache;
     }
 
-    // Getter for current image
+    // Getter for current image, a heap copy of the whole level on screen
     public BufferedImage getCurrentImage() {
-        return currentImage;
+        if (originalImage == null) return null;
+        PixelBuffer level = pyramid.getLevel(currentLevel);
+        Rectangle bounds = new Rectangle(0, 0, level.getWidth(), level.getHeight());
+        return render != null ? render.snapshot(bounds) : level.toImage(bounds);
     }
 }
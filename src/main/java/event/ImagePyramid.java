@@ -0,0 +1,120 @@
+package event;
+
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+// Successively halved copies of an image (1/2, 1/4, 1/8, ...) so zoomed out views can be filtered
+// and drawn from a level close to screen resolution. Level 0 is the original. Levels are built in
+// the background, each from the previous one with rows spread across cores, and become usable one
+// by one. Building stops once the next level would exceed the memory budget. Like the original,
+// levels are kept off the heap. The pyramid owns the original it was built from and every level;
+// whoever keeps using a level in the background after the pyramid may be closed retains it.
+final class ImagePyramid {
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pyramid-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static long budgetBytes = Long.getLong("imagefilter.pyramidBytes", 256L << 20);
+
+    private final List<PixelBuffer> levels = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled = false;
+
+    private ImagePyramid(PixelBuffer original) {
+        levels.add(original);
+    }
+
+    // Takes over original; onLevelReady runs on the builder thread every time a new level can be used
+    static ImagePyramid build(PixelBuffer original, Runnable onLevelReady) {
+        ImagePyramid pyramid = new ImagePyramid(original);
+        builder.execute(() -> pyramid.buildLevels(onLevelReady));
+        return pyramid;
+    }
+
+    static void setBudgetBytes(long bytes) {
+        budgetBytes = bytes;
+    }
+
+    // Stops building and releases every level, e.g. when another image is loaded. The builder
+    // thread runs one task at a time, so the levels are released once it has stopped using them.
+    void close() {
+        cancelled = true;
+        builder.execute(() -> {
+            for (PixelBuffer level : levels) {
+                level.close();
+            }
+        });
+    }
+
+    PixelBuffer getLevel(int level) {
+        return levels.get(level);
+    }
+
+    // Coarsest level that still has at least one pixel per screen pixel at the given zoom
+    int levelFor(double scale) {
+        int level = 0;
+        while (level + 1 < levels.size() && scale <= 1.0 / (1 << (level + 1))) {
+            level++;
+        }
+        return level;
+    }
+
+    private void buildLevels(Runnable onLevelReady) {
+        long usedBytes = 0;
+        PixelBuffer previous = levels.get(0);
+
+        while (!cancelled && Math.max(previous.getWidth(), previous.getHeight()) > TiledRender.TILE_SIZE) {
+            int width = Math.max(1, previous.getWidth() / 2);
+            int height = Math.max(1, previous.getHeight() / 2);
+            usedBytes += 4L * width * height;
+            if (usedBytes > budgetBytes) break;
+
+            PixelBuffer level = halve(previous, width, height);
+            if (cancelled) {
+                level.close();
+                break;
+            }
+            levels.add(level);
+            onLevelReady.run();
+            previous = level;
+        }
+    }
+
+    // 2x2 box filter, every output row is independent so rows are computed in parallel
+    private static PixelBuffer halve(PixelBuffer source, int width, int height) {
+        PixelBuffer half = PixelBuffer.allocate(width, height, source.isOpaque());
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+
+        IntStream.range(0, height).parallel().forEach(y -> {
+            int[] top = new int[sourceWidth];
+            int[] bottom = new int[sourceWidth];
+            int[] row = new int[width];
+            source.read(new Rectangle(0, 2 * y, sourceWidth, 1), top);
+            source.read(new Rectangle(0, Math.min(2 * y + 1, sourceHeight - 1), sourceWidth, 1), bottom);
+
+            for (int x = 0; x < width; x++) {
+                int left = 2 * x;
+                int right = Math.min(left + 1, sourceWidth - 1);
+                row[x] = average(top[left], top[right], bottom[left], bottom[right]);
+            }
+            half.write(new Rectangle(0, y, width, 1), row);
+        });
+        return half;
+    }
+
+    static int average(int p0, int p1, int p2, int p3) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((p0 >>> shift) & 0xff) + ((p1 >>> shift) & 0xff)
+                    + ((p2 >>> shift) & 0xff) + ((p3 >>> shift) & 0xff);
+            result |= ((sum + 2) >> 2) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,121 @@
+package event;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+
+// Flight Recorder events for the hot paths, so a recording from a slow machine shows where the
+// time goes (java -XX:StartFlightRecording=filename=app.jfr ...). Events cost next to nothing
+// while no recording is running. Allocation is measured on the thread that starts the event;
+// work spread over other threads, like filter bands, shows up in their own allocation only.
+final class PerfEvents {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private PerfEvents() {
+    }
+
+    @Category("Image Filter")
+    @StackTrace(false)
+    abstract static class Measured extends Event {
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Bytes Allocated")
+        @DataAmount
+        long bytesAllocated;
+
+        private transient long allocatedAtStart;
+        private transient boolean started;
+
+        // Call right before the work
+        void start() {
+            if (isEnabled()) {
+                allocatedAtStart = THREADS.getCurrentThreadAllocatedBytes();
+                started = true;
+                begin();
+            }
+        }
+
+        // Call right after the work; size is that of the image worked on, if any. Work that was
+        // already running when the recording started isn't committed, it has no start values.
+        void finish(int width, int height) {
+            if (started && shouldCommit()) {
+                this.width = width;
+                this.height = height;
+                bytesAllocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedAtStart;
+                commit();
+            }
+        }
+    }
+
+    @Name("event.FilterStage")
+    @Label("Filter Stage")
+    @Description("One kernel of the filter pipeline run over a region; the size is that of the region")
+    static final class FilterStage extends Measured {
+        @Label("Stage")
+        String stage;
+
+        @Label("Work")
+        @Description("Time spent in this kernel summed over all threads, the event itself spans the whole pass")
+        @Timespan
+        long work;
+    }
+
+    @Name("event.ImageOperation")
+    @Label("Image Operation")
+    @Description("Loading, filtering, saving or painting in the image panel")
+    static final class ImageOperation extends Measured {
+        @Label("Operation")
+        String operation;
+
+        ImageOperation(String operation) {
+            this.operation = operation;
+            start();
+        }
+    }
+
+    @Name("event.Database")
+    @Label("Database Call")
+    @Description("One DatabaseManager call, including waiting for a pooled connection")
+    static final class Database extends Measured {
+        @Label("Operation")
+        String operation;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Success")
+        boolean success = true;
+
+        @Label("Error")
+        String error;
+
+        Database(String operation) {
+            this.operation = operation;
+            start();
+        }
+
+        // Call from the catch block; the event is still committed by finish
+        void failed(Exception e) {
+            success = false;
+            error = e.toString();
+        }
+
+        // Call from a finally block, so failed calls are recorded too
+        void finish(long rows) {
+            this.rows = rows;
+            finish(0, 0);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package event;
+
+import java.util.Arrays;
+
+// Rolling latency and throughput of the last WINDOW renders of one kind, for the overlay
+final class PerfStats {
+    private static final int WINDOW = 200;
+
+    private final long[] nanos = new long[WINDOW];
+    private final long[] pixels = new long[WINDOW];
+    private int count = 0;
+    private int next = 0;
+
+    synchronized void record(long elapsedNanos, long renderedPixels) {
+        nanos[next] = elapsedNanos;
+        pixels[next] = renderedPixels;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    // Latency below which the given fraction of the recent renders finished, in milliseconds
+    synchronized double percentileMillis(double fraction) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        int index = Math.min(count - 1, (int) Math.ceil(fraction * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    synchronized double megapixelsPerSecond() {
+        long totalNanos = 0;
+        long totalPixels = 0;
+        for (int i = 0; i < count; i++) {
+            totalNanos += nanos[i];
+            totalPixels += pixels[i];
+        }
+        return totalNanos == 0 ? 0 : totalPixels / 1e6 / (totalNanos / 1e9);
+    }
+}
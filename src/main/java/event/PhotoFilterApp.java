@@ -13,6 +13,7 @@ public class PhotoFilterApp extends JFrame {
     private ImagePanel imagePanel;
     private FilterPanel filterPanel;
     private DatabaseManager dbManager;
+    private JMenu filterMenu;
 
     public PhotoFilterApp() {
         setTitle(APP_TITLE);
@@ -20,7 +21,7 @@ public class PhotoFilterApp extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
 
-        // Initialize database connection
+        // Shared by everything that stores filters, connected in initializeDatabase()
         dbManager = new DatabaseManager();
 
         // Setup UI components
@@ -31,6 +32,45 @@ public class PhotoFilterApp extends JFrame {
 
         // Apply modern look and feel
         setupLookAndFeel();
+
+        // Runs before EXIT_ON_CLOSE ends the JVM
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeDatabase();
+            }
+        });
+    }
+
+    // Connects and updates the schema in the background once the window is up; saving and loading
+    // filters stays disabled until the database is ready
+    private void initializeDatabase() {
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() {
+                return dbManager.initialize();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    if (get()) {
+                        filterMenu.setEnabled(true);
+                        filterMenu.setToolTipText(null);
+                        filterPanel.refreshSavedFilters();
+                    } else {
+                        filterMenu.setToolTipText("The filter database is not available");
+                    }
+                } catch (Exception e) {
+                    filterMenu.setToolTipText("The filter database is not available");
+                }
+            }
+        }.execute();
+    }
+
+    // Closes the pooled database connections so the server isn't left with dangling sessions
+    private void closeDatabase() {
+        dbManager.close();
     }
 
     private void initializeComponents() {
@@ -39,7 +79,7 @@ public class PhotoFilterApp extends JFrame {
 
         // Create main components
         imagePanel = new ImagePanel();
-        filterPanel = new FilterPanel(imagePanel);
+        filterPanel = new FilterPanel(imagePanel, dbManager);
 
         // Add components to main panel
         mainPanel.add(imagePanel, BorderLayout.CENTER);
@@ -56,30 +96,54 @@ public class PhotoFilterApp extends JFrame {
         JMenu fileMenu = new JMenu("File");
         JMenuItem openItem = new JMenuItem("Open Image");
         JMenuItem saveItem = new JMenuItem("Save Image");
+        JMenuItem largeItem = new JMenuItem("Filter Large Image...");
         JMenuItem exitItem = new JMenuItem("Exit");
 
         openItem.addActionListener(e -> imagePanel.loadImage());
         saveItem.addActionListener(e -> imagePanel.saveImage());
-        exitItem.addActionListener(e -> System.exit(0));
+        imagePanel.addPropertyChangeListener("exporting", e -> saveItem.setEnabled(!(Boolean) e.getNewValue()));
+        largeItem.addActionListener(e -> filterPanel.filterLargeImage());
+        exitItem.addActionListener(e -> {
+            closeDatabase();
+            System.exit(0);
+        });
 
         fileMenu.add(openItem);
         fileMenu.add(saveItem);
+        fileMenu.add(largeItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
 
         // Filter Menu
-        JMenu filterMenu = new JMenu("Filters");
+        filterMenu = new JMenu("Filters");
+        filterMenu.setEnabled(false);
+        filterMenu.setToolTipText("Connecting to the filter database...");
         JMenuItem saveFilterItem = new JMenuItem("Save Filter");
         JMenuItem loadFilterItem = new JMenuItem("Load Filter");
+        JMenuItem importFiltersItem = new JMenuItem("Import Filters...");
+        JMenuItem exportFiltersItem = new JMenuItem("Export Filters...");
 
         saveFilterItem.addActionListener(e -> filterPanel.saveCurrentFilter());
         loadFilterItem.addActionListener(e -> filterPanel.loadSavedFilter());
+        importFiltersItem.addActionListener(e -> filterPanel.importFilters());
+        exportFiltersItem.addActionListener(e -> filterPanel.exportFilters());
 
         filterMenu.add(saveFilterItem);
         filterMenu.add(loadFilterItem);
+        filterMenu.addSeparator();
+        filterMenu.add(importFiltersItem);
+        filterMenu.add(exportFiltersItem);
+
+        // View Menu
+        JMenu viewMenu = new JMenu("View");
+        JCheckBoxMenuItem overlayItem = new JCheckBoxMenuItem("Performance Overlay");
+        overlayItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F12, 0));
+        overlayItem.addActionListener(e -> imagePanel.setOverlayVisible(overlayItem.isSelected()));
+        viewMenu.add(overlayItem);
 
         menuBar.add(fileMenu);
         menuBar.add(filterMenu);
+        menuBar.add(viewMenu);
 
         return menuBar;
     }
@@ -102,6 +166,7 @@ public class PhotoFilterApp extends JFrame {
         SwingUtilities.invokeLater(() -> {
             PhotoFilterApp app = new PhotoFilterApp();
             app.setVisible(true);
+            app.initializeDatabase();
         });
     }
 }
\ No newline at end of file
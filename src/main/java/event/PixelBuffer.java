@@ -0,0 +1,178 @@
+package event;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Packed ARGB pixels kept outside the Java heap, so large photos, their pyramid levels and renders
+// don't weigh on the garbage collector. With -Dimagefilter.scratchDir the memory is mapped from a
+// file in that directory instead, which lets the OS page it out. Pixels are copied in and out a
+// region at a time; only what is actually shown is turned back into a BufferedImage.
+// The memory is reference counted: a new buffer has one reference, everyone else who keeps using
+// it in the background (renders, caches, exports) takes one with retain(), and the memory is
+// released as soon as the last one is given back with close(). The heap around these buffers is
+// small, so waiting for the garbage collector would let native memory pile up; the collector only
+// cleans up after buffers that were never closed.
+final class PixelBuffer implements AutoCloseable {
+    private static final String SCRATCH_DIR = System.getProperty("imagefilter.scratchDir");
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final int width;
+    private final int height;
+    private final boolean opaque;
+    private final MemorySegment pixels;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final Cleaner.Cleanable release;
+
+    private PixelBuffer(int width, int height, boolean opaque) {
+        this.width = width;
+        this.height = height;
+        this.opaque = opaque;
+        long bytes = 4L * width * height;
+        Arena arena = Arena.ofShared();
+        this.pixels = SCRATCH_DIR != null ? map(bytes, arena) : arena.allocate(bytes, 4);
+        this.release = cleaner.register(this, arena::close);
+    }
+
+    // Zeroed, i.e. fully transparent; opaque promises that every pixel written will be opaque
+    static PixelBuffer allocate(int width, int height, boolean opaque) {
+        return new PixelBuffer(width, height, opaque);
+    }
+
+    static PixelBuffer of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer buffer = new PixelBuffer(width, height, !image.getColorModel().hasAlpha());
+        int stripRows = Math.max(1, (1 << 20) / width);
+        for (int y = 0; y < height; y += stripRows) {
+            int rows = Math.min(stripRows, height - y);
+            buffer.write(new Rectangle(0, y, width, rows), argb(image.getSubimage(0, y, width, rows)));
+        }
+        return buffer;
+    }
+
+    // Decodes an image file. Images above the streaming threshold are decoded strip by strip, so
+    // they never exist on the heap as a whole; readers may decode from the top of the file again
+    // for every strip, so smaller images are decoded in one go.
+    static PixelBuffer read(File file) throws IOException {
+        Dimension size = StripProcessor.readSize(file);
+        if ((long) size.width * size.height <= StripProcessor.STREAM_THRESHOLD) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            return of(image);
+        }
+
+        PixelBuffer[] buffer = new PixelBuffer[1];
+        StripProcessor.readStrips(file, (strip, y, width, height, alpha) -> {
+            if (buffer[0] == null) {
+                buffer[0] = new PixelBuffer(width, height, !alpha);
+            }
+            buffer[0].write(new Rectangle(0, y, width, strip.getHeight()), argb(strip));
+        });
+        return buffer[0];
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean isOpaque() {
+        return opaque;
+    }
+
+    long bytes() {
+        return pixels.byteSize();
+    }
+
+    // Takes another reference, to be given back with close()
+    PixelBuffer retain() {
+        if (references.getAndUpdate(count -> count == 0 ? 0 : count + 1) == 0) {
+            throw new IllegalStateException("Pixel buffer has already been released");
+        }
+        return this;
+    }
+
+    // Gives back one reference, the memory is released with the last one
+    @Override
+    public void close() {
+        if (references.decrementAndGet() == 0) {
+            release.clean();
+        }
+    }
+
+    // Copies region into dst, row after row without gaps
+    void read(Rectangle region, int[] dst) {
+        for (int y = 0; y < region.height; y++) {
+            long offset = 4L * ((long) (region.y + y) * width + region.x);
+            MemorySegment.copy(pixels, ValueLayout.JAVA_INT, offset, dst, y * region.width, region.width);
+        }
+    }
+
+    // Copies src, laid out like read() fills it, into region
+    void write(Rectangle region, int[] src) {
+        for (int y = 0; y < region.height; y++) {
+            long offset = 4L * ((long) (region.y + y) * width + region.x);
+            MemorySegment.copy(src, y * region.width, pixels, ValueLayout.JAVA_INT, offset, region.width);
+        }
+    }
+
+    // A heap copy of region, e.g. the part that is about to be painted
+    BufferedImage toImage(Rectangle region) {
+        BufferedImage image = new BufferedImage(Math.max(1, region.width), Math.max(1, region.height),
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        if (!region.isEmpty()) {
+            read(region, ImageFilter.pixels(image));
+        }
+        return image;
+    }
+
+    // Pixels of image as packed ARGB, converted the same way the filter converts its input
+    private static int[] argb(BufferedImage image) {
+        int[] direct = image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB
+                ? ImageFilter.directPixels(image) : null;
+        if (direct != null) return direct;
+
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = converted.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return ImageFilter.pixels(converted);
+    }
+
+    // The file is deleted right away, the mapping keeps its pages alive until the arena is closed
+    private static MemorySegment map(long bytes, Arena arena) {
+        try {
+            Path file = Files.createTempFile(Path.of(SCRATCH_DIR), "pixels", ".raw");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes, arena);
+            } finally {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    // Some systems don't allow deleting a mapped file
+                    file.toFile().deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map scratch file in " + SCRATCH_DIR, e);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package event;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+// Writes a whole image as PNG using every core. The rows are cut into chunks that are filtered and
+// compressed independently (the way pigz does it): every chunk but the last ends on a byte aligned
+// sync flush, so the raw deflate streams can simply be concatenated behind one zlib header, and
+// the checksum is stitched together from the per chunk checksums.
+final class PngEncoder {
+    // Compression level and whether every row tries all five PNG filters or just Sub
+    enum Preset {
+        FASTEST(1, false),
+        BALANCED(4, true),
+        SMALLEST(9, true);
+
+        private final int level;
+        private final boolean adaptive;
+
+        Preset(int level, boolean adaptive) {
+            this.level = level;
+            this.adaptive = adaptive;
+        }
+
+        // -Dimagefilter.pngPreset=fastest|balanced|smallest
+        static Preset fromProperty() {
+            String name = System.getProperty("imagefilter.pngPreset", "balanced");
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // Uncompressed bytes per chunk; much smaller chunks lose compression at every boundary
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private int level;
+    private boolean adaptive;
+    private boolean dropOpaqueAlpha = true;
+    private boolean parallel = true;
+
+    PngEncoder(Preset preset) {
+        this.level = preset.level;
+        this.adaptive = preset.adaptive;
+    }
+
+    PngEncoder withLevel(int level) {
+        this.level = Math.max(0, Math.min(9, level));
+        return this;
+    }
+
+    PngEncoder withAdaptiveFilters(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    // Images whose pixels are all opaque are stored as RGB, a quarter fewer bytes than RGBA
+    PngEncoder withDropOpaqueAlpha(boolean dropOpaqueAlpha) {
+        this.dropOpaqueAlpha = dropOpaqueAlpha;
+        return this;
+    }
+
+    // Off for callers that already keep every core busy with other images
+    PngEncoder withParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    void write(BufferedImage image, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(image, out);
+        }
+    }
+
+    void write(BufferedImage image, OutputStream stream) throws IOException {
+        int width = image.getWidth();
+        write(width, image.getHeight(), image.getColorModel().hasAlpha(),
+                (y, argb) -> image.getRGB(0, y, width, 1, argb, 0, width), stream);
+    }
+
+    void write(PixelBuffer buffer, File file) throws IOException {
+        int width = buffer.getWidth();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(width, buffer.getHeight(), !buffer.isOpaque(),
+                    (y, argb) -> buffer.read(new Rectangle(0, y, width, 1), argb), out);
+        }
+    }
+
+    // Reads row y of the image as packed ARGB
+    private interface Rows {
+        void read(int y, int[] argb);
+    }
+
+    private void write(int width, int height, boolean hasAlpha, Rows image, OutputStream stream) throws IOException {
+        boolean alpha = hasAlpha && !(dropOpaqueAlpha && isOpaque(image, width, height));
+        int channels = alpha ? 4 : 3;
+        int rowsPerChunk = Math.max(1, CHUNK_BYTES / (1 + width * channels));
+        int chunkCount = (height + rowsPerChunk - 1) / rowsPerChunk;
+
+        DataOutputStream out = new DataOutputStream(stream);
+        PngStreamWriter.writeHeader(out, width, height, alpha);
+
+        // Chunks are written in order as they finish. Only a few more than there are threads are
+        // encoded ahead of the writer, so memory doesn't grow with the size of the image.
+        int window = parallel ? 2 * ForkJoinPool.getCommonPoolParallelism() : 1;
+        Deque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+        int next = 0;
+        long adler = 1;
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                while (next < chunkCount && pending.size() < window) {
+                    int fromRow = next * rowsPerChunk;
+                    int toRow = Math.min(height, fromRow + rowsPerChunk);
+                    boolean last = next == chunkCount - 1;
+                    Supplier<Chunk> encode = () -> encodeChunk(image, width, channels, fromRow, toRow, last);
+                    pending.add(parallel
+                            ? CompletableFuture.supplyAsync(encode)
+                            : CompletableFuture.completedFuture(encode.get()));
+                    next++;
+                }
+                Chunk chunk = join(pending.remove());
+                adler = combineAdler32(adler, chunk.adler, chunk.rawLength);
+
+                ByteArrayOutputStream data = new ByteArrayOutputStream(chunk.compressed.length + 6);
+                if (i == 0) {
+                    data.write(0x78);
+                    data.write(zlibFlags());
+                }
+                data.write(chunk.compressed);
+                if (i == chunkCount - 1) {
+                    for (int shift = 24; shift >= 0; shift -= 8) {
+                        data.write((int) (adler >>> shift));
+                    }
+                }
+                PngStreamWriter.writeChunk(out, "IDAT", data.toByteArray(), data.size());
+            }
+        } finally {
+            // After a failure, chunks that haven't started yet are not encoded at all
+            for (CompletableFuture<Chunk> chunk : pending) {
+                chunk.cancel(false);
+            }
+        }
+        PngStreamWriter.writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    // Rethrows what went wrong while encoding a chunk as it was thrown
+    private static Chunk join(CompletableFuture<Chunk> chunk) {
+        try {
+            return chunk.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw e;
+        }
+    }
+
+    private record Chunk(byte[] compressed, long adler, long rawLength) {
+    }
+
+    private Chunk encodeChunk(Rows image, int width, int channels, int fromRow, int toRow, boolean last) {
+        int rowBytes = width * channels;
+        int[] argb = new int[width];
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[] raw = new byte[(toRow - fromRow) * (1 + rowBytes)];
+
+        // Up, Average and Paeth look at the row above, which belongs to the previous chunk
+        if (fromRow > 0) {
+            image.read(fromRow - 1, argb);
+            toBytes(argb, channels, previous);
+        }
+        byte[][] candidates = adaptive ? new byte[5][rowBytes] : null;
+
+        for (int y = fromRow, at = 0; y < toRow; y++, at += 1 + rowBytes) {
+            image.read(y, argb);
+            toBytes(argb, channels, current);
+            if (adaptive) {
+                int best = FILTER_NONE;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                    long sum = filterRow(type, current, previous, channels, candidates[type]);
+                    if (sum < bestSum) {
+                        best = type;
+                        bestSum = sum;
+                    }
+                }
+                raw[at] = (byte) best;
+                System.arraycopy(candidates[best], 0, raw, at + 1, rowBytes);
+            } else {
+                raw[at] = FILTER_SUB;
+                filterRow(FILTER_SUB, current, previous, channels, current);
+                System.arraycopy(current, 0, raw, at + 1, rowBytes);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(raw);
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(raw);
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (true) {
+                int length = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, length);
+                if (last ? deflater.finished() : length < buffer.length) break;
+            }
+            return new Chunk(compressed.toByteArray(), adler.getValue(), raw.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void toBytes(int[] argb, int channels, byte[] bytes) {
+        for (int x = 0, i = 0; x < argb.length; x++, i += channels) {
+            int pixel = argb[x];
+            bytes[i] = (byte) (pixel >> 16);
+            bytes[i + 1] = (byte) (pixel >> 8);
+            bytes[i + 2] = (byte) pixel;
+            if (channels == 4) {
+                bytes[i + 3] = (byte) (pixel >>> 24);
+            }
+        }
+    }
+
+    // Writes the filtered row to out (which may be row itself for Sub) and returns the sum of
+    // the filtered bytes taken as signed values, the usual guess for what compresses best
+    private static long filterRow(int type, byte[] row, byte[] above, int bpp, byte[] out) {
+        long sum = 0;
+        for (int i = row.length - 1; i >= 0; i--) {
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = above[i] & 0xff;
+            int c = i >= bpp ? above[i - bpp] & 0xff : 0;
+            int predictor = switch (type) {
+                case FILTER_SUB -> a;
+                case FILTER_UP -> b;
+                case FILTER_AVERAGE -> (a + b) >>> 1;
+                case FILTER_PAETH -> paeth(a, b, c);
+                default -> 0;
+            };
+            byte filtered = (byte) (row[i] - predictor);
+            out[i] = filtered;
+            sum += Math.abs(filtered);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static boolean isOpaque(Rows image, int width, int height) {
+        return IntStream.range(0, height).parallel().allMatch(y -> {
+            int[] row = new int[width];
+            image.read(y, row);
+            for (int pixel : row) {
+                if (pixel >>> 24 != 0xff) return false;
+            }
+            return true;
+        });
+    }
+
+    // Second zlib header byte: the compression level hint, padded so the header is a multiple of 31
+    private int zlibFlags() {
+        int levelHint = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flags = levelHint << 6;
+        return flags + (31 - (0x78 * 256 + flags) % 31) % 31;
+    }
+
+    // Adler-32 of two byte sequences joined, from the checksums of each part (as zlib's adler32_combine)
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+}
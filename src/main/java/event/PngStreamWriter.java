@@ -0,0 +1,119 @@
+package event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes a PNG row by row, so an image never has to be in memory as a whole. Pixels come in as
+// packed ARGB ints and are stored as 8-bit RGB, or RGBA when the image has transparency. Every
+// row uses the Sub filter, which suits photos well and only needs the row itself.
+final class PngStreamWriter implements AutoCloseable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    // Compressed data is flushed as one IDAT chunk whenever this much has collected
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final byte[] row;
+    private final Deflater deflater;
+    private final DeflaterOutputStream compressed;
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+    private int rowsWritten = 0;
+
+    PngStreamWriter(OutputStream out, int width, int height, boolean alpha, int compressionLevel) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.row = new byte[1 + width * (alpha ? 4 : 3)];
+        this.deflater = new Deflater(compressionLevel);
+        this.compressed = new DeflaterOutputStream(chunk, deflater, CHUNK_SIZE);
+
+        writeHeader(this.out, width, height, alpha);
+    }
+
+    // PNG signature and IHDR for 8-bit truecolor, with or without alpha
+    static void writeHeader(DataOutputStream out, int width, int height, boolean alpha) throws IOException {
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);              // bits per channel
+        headerData.writeByte(alpha ? 6 : 2);  // truecolor, with or without alpha
+        headerData.writeByte(0);              // deflate
+        headerData.writeByte(0);              // adaptive filtering
+        headerData.writeByte(0);              // no interlacing
+        writeChunk(out, "IHDR", header.toByteArray(), header.size());
+    }
+
+    // Appends rows of pixels[offset ...], scanlines stride ints apart
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IOException("More rows than the image height of " + height);
+        }
+        int channels = alpha ? 4 : 3;
+        for (int y = 0; y < rows; y++) {
+            int index = offset + y * stride;
+            row[0] = 1;  // Sub: every byte minus the same channel of the pixel to its left
+            int previous = 0;
+            for (int x = 0, i = 1; x < width; x++, i += channels) {
+                int argb = pixels[index + x];
+                row[i] = (byte) ((argb >> 16) - (previous >> 16));
+                row[i + 1] = (byte) ((argb >> 8) - (previous >> 8));
+                row[i + 2] = (byte) (argb - previous);
+                if (alpha) {
+                    row[i + 3] = (byte) ((argb >>> 24) - (previous >>> 24));
+                }
+                previous = argb;
+            }
+            compressed.write(row);
+            if (chunk.size() >= CHUNK_SIZE) {
+                flushChunk();
+            }
+        }
+        rowsWritten += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+            }
+            compressed.finish();
+            flushChunk();
+            writeChunk(out, "IEND", new byte[0], 0);
+            out.flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (chunk.size() == 0) return;
+        writeChunk(out, "IDAT", chunk.toByteArray(), chunk.size());
+        chunk.reset();
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,172 @@
+package event;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+// Picks a saved filter from a library of any size: names are fetched a page at a time as the list
+// is scrolled, and typing narrows them down to those starting with the search text. Only names
+// are read here, the caller loads the values of the one that was picked.
+class PresetBrowser extends JDialog {
+    private static final int PAGE_SIZE = 100;
+
+    // Typing pauses this long before the search runs
+    private static final int SEARCH_DELAY_MILLIS = 250;
+
+    private final DatabaseManager dbManager;
+    private final JTextField searchField = new JTextField(20);
+    private final DefaultListModel<String> names = new DefaultListModel<>();
+    private final JList<String> list = new JList<>(names);
+    private final JLabel status = new JLabel(" ");
+    private final Timer searchTimer;
+
+    // Bumped by every new search, so pages of an older search that arrive late are dropped
+    private int generation = 0;
+    private boolean loading = false;
+    private boolean exhausted = false;
+    private String selected;
+
+    private PresetBrowser(Component parent, DatabaseManager dbManager) {
+        super(SwingUtilities.getWindowAncestor(parent), "Load Filter", ModalityType.APPLICATION_MODAL);
+        this.dbManager = dbManager;
+
+        searchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> search());
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
+        searchField.addActionListener(e -> {
+            if (names.size() == 1) {
+                list.setSelectedIndex(0);
+                choose();
+            }
+        });
+
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(15);
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) choose();
+            }
+        });
+
+        JScrollPane scrollPane = new JScrollPane(list);
+        // Fetch the next page when the end of the list is less than a screen away
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            if (bar.getValue() + 2 * bar.getVisibleAmount() >= bar.getMaximum()) {
+                loadMore();
+            }
+        });
+
+        JButton loadButton = new JButton("Load");
+        JButton cancelButton = new JButton("Cancel");
+        loadButton.addActionListener(e -> choose());
+        cancelButton.addActionListener(e -> dispose());
+        getRootPane().setDefaultButton(loadButton);
+
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(loadButton);
+        buttonPanel.add(cancelButton);
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(status, BorderLayout.WEST);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+
+        JPanel content = new JPanel(new BorderLayout(0, 10));
+        content.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        content.add(searchPanel, BorderLayout.NORTH);
+        content.add(scrollPane, BorderLayout.CENTER);
+        content.add(bottomPanel, BorderLayout.SOUTH);
+        setContentPane(content);
+
+        pack();
+        setLocationRelativeTo(parent);
+        search();
+    }
+
+    // The name of the filter picked, or null if the dialog was cancelled
+    static String choose(Component parent, DatabaseManager dbManager) {
+        PresetBrowser browser = new PresetBrowser(parent, dbManager);
+        browser.setVisible(true);
+        return browser.selected;
+    }
+
+    private void choose() {
+        String name = list.getSelectedValue();
+        if (name != null) {
+            selected = name;
+            dispose();
+        }
+    }
+
+    private void search() {
+        generation++;
+        names.clear();
+        exhausted = false;
+        loading = false;
+        loadMore();
+    }
+
+    private void loadMore() {
+        if (loading || exhausted) return;
+        loading = true;
+        status.setText("Loading...");
+
+        int requested = generation;
+        String prefix = searchField.getText();
+        String after = names.isEmpty() ? "" : names.lastElement();
+
+        new SwingWorker<List<String>, Void>() {
+            @Override
+            protected List<String> doInBackground() throws Exception {
+                return dbManager.findFilterNames(prefix, after, PAGE_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                if (requested != generation) return;
+                loading = false;
+                try {
+                    List<String> page = get();
+                    names.addAll(page);
+                    exhausted = page.size() < PAGE_SIZE;
+                    if (names.isEmpty()) {
+                        status.setText(prefix.isEmpty() ? "No saved filters found!" : "No matching filters");
+                    } else {
+                        status.setText(names.size() + (exhausted ? "" : "+") + " filters");
+                    }
+                    if (list.getSelectedIndex() < 0 && !names.isEmpty()) {
+                        list.setSelectedIndex(0);
+                    }
+                } catch (Exception e) {
+                    exhausted = true;
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    status.setText("Error loading filters: " + cause.getMessage());
+                }
+            }
+        }.execute();
+    }
+}
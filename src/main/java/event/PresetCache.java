@@ -0,0 +1,265 @@
+package event;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Saved filters held in memory, so picking the same filter again doesn't query the database.
+// Single filters are read as they are asked for, the whole table only when someone wants all of
+// them. Kept current write-through by this instance's saves and deletes. Changes made by other
+// instances arrive as Postgres notifications on CHANNEL, sent by a trigger on the filters table;
+// each names a filter, and the filters named in one poll are read again with a single query. This
+// instance's own changes are notified too, so a bulk import costs one query per poll rather than
+// one per row. Without a listener (-Dimagefilter.presetSync=local,
+// or while the server can't be reached) the cache only sees local changes, and after the listener
+// reconnects everything is read again in case something was missed.
+final class PresetCache {
+    static final String CHANNEL = "filters_changed";
+
+    // How often the listener checks for notifications and for being closed, and how long it
+    // waits before reconnecting after losing the server
+    private static final int POLL_MILLIS = 1000;
+    private static final long RECONNECT_MILLIS = 5000;
+
+    interface Loader {
+        Map<String, Map<String, Integer>> loadAll() throws SQLException;
+
+        // null if there is no filter with that name (any more)
+        Map<String, Integer> load(String name) throws SQLException;
+
+        // Those of names that still exist
+        Map<String, Map<String, Integer>> load(Collection<String> names) throws SQLException;
+    }
+
+    private final Loader loader;
+
+    // complete once every filter has been read, both reset when changes may have been missed
+    private final Map<String, Map<String, Integer>> presets = new TreeMap<>();
+    private boolean complete = false;
+    private long hits = 0;
+    private long misses = 0;
+
+    // Bumped by every local save or delete of a name, so a refresh that read the database before
+    // one of them doesn't overwrite it with what it read
+    private final Map<String, Long> localWrites = new HashMap<>();
+
+    // Bumped whenever other instances may have changed something, i.e. on every notification and
+    // when the cache is invalidated; a read started before that isn't kept
+    private long generation = 0;
+
+    private volatile boolean closed = false;
+    private Thread listener;
+
+    PresetCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    // Sorted by name
+    Map<String, Map<String, Integer>> getAll() throws SQLException {
+        return loadComplete();
+    }
+
+    // Reads from the database without holding the lock, so a slow query or a wait for a pooled
+    // connection doesn't hold up the listener or local writes
+    Map<String, Integer> get(String name) throws SQLException {
+        long writesBefore;
+        long generationBefore;
+        synchronized (this) {
+            Map<String, Integer> values = presets.get(name);
+            if (values != null || complete) {
+                hits++;
+                return values;
+            }
+            misses++;
+            writesBefore = localWrites.getOrDefault(name, 0L);
+            generationBefore = generation;
+        }
+
+        Map<String, Integer> loaded = loader.load(name);
+        Map<String, Integer> values = loaded != null ? Map.copyOf(loaded) : null;
+        synchronized (this) {
+            // Saved or deleted here meanwhile, which is newer than what was read
+            if (writesBefore != localWrites.getOrDefault(name, 0L)) {
+                return presets.get(name);
+            }
+            if (values != null && generation == generationBefore) {
+                presets.putIfAbsent(name, values);
+            }
+            return values;
+        }
+    }
+
+    List<String> getNames() throws SQLException {
+        return List.copyOf(loadComplete().keySet());
+    }
+
+    // Write-through: called after the database accepted the change
+    synchronized void put(String name, Map<String, Integer> values) {
+        presets.put(name, Map.copyOf(values));
+        localWrites.merge(name, 1L, Long::sum);
+    }
+
+    synchronized void remove(String name) {
+        presets.remove(name);
+        localWrites.merge(name, 1L, Long::sum);
+    }
+
+    // Everything is read again on next use
+    synchronized void invalidate() {
+        presets.clear();
+        complete = false;
+        generation++;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    // Every filter, read without holding the lock like get(). Filters saved or deleted here while
+    // the table was read keep their local state; the result is only kept as the complete cache if
+    // no notification came in meanwhile.
+    private Map<String, Map<String, Integer>> loadComplete() throws SQLException {
+        Map<String, Long> writesBefore;
+        long generationBefore;
+        synchronized (this) {
+            if (complete) {
+                hits++;
+                return Collections.unmodifiableMap(new LinkedHashMap<>(presets));
+            }
+            misses++;
+            writesBefore = new HashMap<>(localWrites);
+            generationBefore = generation;
+        }
+
+        Map<String, Map<String, Integer>> loaded = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Integer>> preset : loader.loadAll().entrySet()) {
+            loaded.put(preset.getKey(), Map.copyOf(preset.getValue()));
+        }
+        synchronized (this) {
+            // After an invalidation the cache no longer knows the local state, what was read is
+            // returned as it is and read again on next use
+            if (generation != generationBefore) {
+                return Collections.unmodifiableMap(new LinkedHashMap<>(loaded));
+            }
+            for (Map.Entry<String, Long> writes : localWrites.entrySet()) {
+                String name = writes.getKey();
+                if (writes.getValue().equals(writesBefore.get(name))) continue;
+                Map<String, Integer> values = presets.get(name);
+                if (values != null) {
+                    loaded.put(name, values);
+                } else {
+                    loaded.remove(name);
+                }
+            }
+            if (!complete) {
+                presets.clear();
+                presets.putAll(loaded);
+                complete = true;
+            }
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<>(loaded));
+    }
+
+    // Reads the named filters again after they changed; filters nobody has asked for yet are left
+    // to be read on demand. The read happens outside the lock, so a filter saved or deleted here
+    // meanwhile keeps its local value: that change has a notification of its own still to come,
+    // which reads the filter again.
+    private void refresh(Set<String> names) throws SQLException {
+        Map<String, Long> writesBefore = new HashMap<>();
+        synchronized (this) {
+            generation++;
+            for (String name : names) {
+                if (complete || presets.containsKey(name)) {
+                    writesBefore.put(name, localWrites.getOrDefault(name, 0L));
+                }
+            }
+        }
+        if (writesBefore.isEmpty()) return;
+
+        Map<String, Map<String, Integer>> loaded = loader.load(writesBefore.keySet());
+        synchronized (this) {
+            for (Map.Entry<String, Long> before : writesBefore.entrySet()) {
+                String name = before.getKey();
+                if (!before.getValue().equals(localWrites.getOrDefault(name, 0L))) continue;
+                Map<String, Integer> values = loaded.get(name);
+                if (values != null) {
+                    presets.put(name, Map.copyOf(values));
+                } else {
+                    presets.remove(name);
+                }
+            }
+        }
+    }
+
+    // Starts following changes from other instances on a connection of its own, outside the pool
+    // since it stays subscribed for as long as the application runs
+    synchronized void listen(String url, String user, String password) {
+        if (listener != null || closed) return;
+        listener = new Thread(() -> {
+            boolean warned = false;
+            while (!closed) {
+                try (Connection connection = DriverManager.getConnection(url, user, password)) {
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.execute("LISTEN " + CHANNEL);
+                    }
+                    // Changes made while nobody was listening
+                    invalidate();
+                    warned = false;
+
+                    PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                    while (!closed) {
+                        PGNotification[] notifications = pgConnection.getNotifications(POLL_MILLIS);
+                        if (notifications == null || notifications.length == 0) continue;
+                        Set<String> names = new LinkedHashSet<>();
+                        for (PGNotification notification : notifications) {
+                            names.add(notification.getParameter());
+                        }
+                        refresh(names);
+                    }
+                } catch (SQLException e) {
+                    if (closed) break;
+                    if (!warned) {
+                        System.err.println("Not following filter changes from other instances: " + e.getMessage());
+                        warned = true;
+                    }
+                    invalidate();
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        break;
+                    }
+                }
+            }
+        }, "preset-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    void close() {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = listener;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
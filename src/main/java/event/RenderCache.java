@@ -0,0 +1,85 @@
+package event;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Recently rendered filter combinations, so switching back to a preset or saved filter shows the
+// earlier result instead of filtering again. Entries are kept in least recently used order and
+// evicted once their pixels exceed the byte budget. Must be cleared when the image changes.
+// The cache owns one reference to every render put into it and closes it on eviction; a render
+// returned by get() stays usable until the next put or clear, unless the caller retains it.
+final class RenderCache {
+    record Key(long imageId, int level, FilterParams params, ImageFilter.SaturationMode saturationMode) {
+    }
+
+    private final Map<Key, TiledRender> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budgetBytes;
+    private long usedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    RenderCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    synchronized TiledRender get(Key key) {
+        TiledRender render = entries.get(key);
+        if (render != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return render;
+    }
+
+    // Takes over the caller's reference to render
+    synchronized void put(Key key, TiledRender render) {
+        TiledRender previous = entries.put(key, render);
+        if (previous != null) {
+            usedBytes -= previous.bytes();
+            previous.close();
+        }
+        usedBytes += render.bytes();
+
+        Iterator<TiledRender> renders = entries.values().iterator();
+        while (usedBytes > budgetBytes && renders.hasNext()) {
+            TiledRender evicted = renders.next();
+            usedBytes -= evicted.bytes();
+            renders.remove();
+            evicted.close();
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        for (TiledRender render : entries.values()) {
+            render.close();
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+}
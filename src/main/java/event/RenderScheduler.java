@@ -0,0 +1,71 @@
+package event;
+
+import javax.swing.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Runs renders off the event thread where only the newest request matters. Requests that were
+// overtaken while queued are skipped, a render in progress learns it is stale through the check
+// it is given, and results only reach the event thread if nothing newer was submitted meanwhile.
+final class RenderScheduler {
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "render-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong latest = new AtomicLong();
+    private final Consumer<Exception> onError;
+
+    RenderScheduler(Consumer<Exception> onError) {
+        this.onError = onError;
+    }
+
+    // render gets a check that turns true once a newer request arrives; onDone runs on the EDT
+    <T> void submit(Function<BooleanSupplier, T> render, Consumer<T> onDone) {
+        submit(render, onDone, () -> {});
+    }
+
+    // Like submit(render, onDone), release runs exactly once afterwards whether the request ran,
+    // failed or was skipped, e.g. to give back references to the buffers it works on
+    <T> void submit(Function<BooleanSupplier, T> render, Consumer<T> onDone, Runnable release) {
+        long ticket = latest.incrementAndGet();
+        BooleanSupplier stale = () -> latest.get() != ticket;
+
+        worker.execute(() -> {
+            boolean handedOver = false;
+            try {
+                if (stale.getAsBoolean()) return;
+                T result = render.apply(stale);
+                // The result may still be in use on the EDT, so release follows onDone there
+                SwingUtilities.invokeLater(() -> {
+                    try {
+                        if (!stale.getAsBoolean()) {
+                            onDone.accept(result);
+                        }
+                    } finally {
+                        release.run();
+                    }
+                });
+                handedOver = true;
+            } catch (CancellationException e) {
+                // A newer request took over
+            } catch (RuntimeException e) {
+                SwingUtilities.invokeLater(() -> onError.accept(e));
+            } finally {
+                if (!handedOver) {
+                    release.run();
+                }
+            }
+        });
+    }
+
+    // Drops everything queued or running, e.g. when the image is reset or replaced
+    void cancel() {
+        latest.incrementAndGet();
+    }
+}
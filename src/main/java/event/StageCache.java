@@ -0,0 +1,172 @@
+package event;
+
+import java.awt.*;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Intermediate results of the filter pipeline, so moving one slider only recomputes what comes
+// after it. SATURATED holds the pixels after brightness, contrast and saturation, COLORED the
+// pixels after everything but the vignette. Each checkpoint belongs to one source image and the
+// slider values up to its stage, and remembers which tiles it has been filled for. The least
+// recently used checkpoints are dropped once they exceed the byte budget; a pass still using a
+// dropped checkpoint holds a reference to it, so its pixels are only released after the pass.
+final class StageCache {
+    enum Stage {
+        SATURATED,
+        COLORED
+    }
+
+    // source is compared by identity, every pyramid level is its own buffer
+    private record Key(PixelBuffer source, Stage stage, FilterParams upstream,
+                       ImageFilter.SaturationMode saturationMode) {
+    }
+
+    private final Map<Key, Checkpoint> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budgetBytes;
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    StageCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // The slider values that determine the output of stage, everything after it set to zero
+    static FilterParams upstream(FilterParams params, Stage stage) {
+        return switch (stage) {
+            case SATURATED -> new FilterParams(params.brightness(), params.contrast(), params.saturation(), 0, 0, 0);
+            case COLORED -> new FilterParams(params.brightness(), params.contrast(), params.saturation(),
+                    params.temperature(), params.fade(), 0);
+        };
+    }
+
+    // Whether count checkpoints of source fit in the budget together
+    boolean fits(PixelBuffer source, int count) {
+        return count * 4L * source.getWidth() * source.getHeight() <= budgetBytes;
+    }
+
+    // Returns the checkpoint for stage; if there is none yet, an empty one when create is set and
+    // null otherwise. The caller closes it when done.
+    synchronized Checkpoint get(PixelBuffer source, Stage stage, FilterParams params,
+                                ImageFilter.SaturationMode saturationMode, boolean create) {
+        Key key = new Key(source, stage, upstream(params, stage), saturationMode);
+        Checkpoint checkpoint = entries.get(key);
+        if (checkpoint != null) {
+            return checkpoint.retain();
+        }
+        if (!create) return null;
+
+        checkpoint = new Checkpoint(source.getWidth(), source.getHeight()).retain();
+        entries.put(key, checkpoint);
+        usedBytes += checkpoint.bytes();
+
+        // Least recently used first. Callers only create checkpoints when all those their pass
+        // fills fit together (see fits), so the ones being filled are not among those dropped.
+        Iterator<Checkpoint> checkpoints = entries.values().iterator();
+        while (usedBytes > budgetBytes && checkpoints.hasNext()) {
+            Checkpoint evicted = checkpoints.next();
+            usedBytes -= evicted.bytes();
+            checkpoints.remove();
+            evicted.close();
+        }
+        return checkpoint;
+    }
+
+    // Whether a checkpoint already covered what was asked of it, i.e. its stages were skipped
+    synchronized void recordLookup(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    synchronized void clear() {
+        for (Checkpoint checkpoint : entries.values()) {
+            checkpoint.close();
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    // Full-size pixels of one stage, off the heap like the source, only valid inside the tiles
+    // marked as filled
+    static final class Checkpoint implements AutoCloseable {
+        private final PixelBuffer pixels;
+        private final int width;
+        private final int height;
+        private final int columns;
+        private final BitSet filled;
+
+        private Checkpoint(int width, int height) {
+            this.pixels = PixelBuffer.allocate(width, height, false);
+            this.width = width;
+            this.height = height;
+            this.columns = (width + TiledRender.TILE_SIZE - 1) / TiledRender.TILE_SIZE;
+            int rows = (height + TiledRender.TILE_SIZE - 1) / TiledRender.TILE_SIZE;
+            this.filled = new BitSet(columns * rows);
+        }
+
+        PixelBuffer pixels() {
+            return pixels;
+        }
+
+        Checkpoint retain() {
+            pixels.retain();
+            return this;
+        }
+
+        @Override
+        public void close() {
+            pixels.close();
+        }
+
+        long bytes() {
+            return 4L * width * height;
+        }
+
+        synchronized boolean covers(Rectangle region) {
+            Rectangle tiles = tiles(region, false);
+            for (int row = tiles.y; row < tiles.y + tiles.height; row++) {
+                int first = row * columns + tiles.x;
+                if (filled.nextClearBit(first) < first + tiles.width) return false;
+            }
+            return true;
+        }
+
+        // Only tiles that lie completely inside region count as filled
+        synchronized void markFilled(Rectangle region) {
+            Rectangle tiles = tiles(region, true);
+            for (int row = tiles.y; row < tiles.y + tiles.height; row++) {
+                int first = row * columns + tiles.x;
+                filled.set(first, first + tiles.width);
+            }
+        }
+
+        // Tile columns and rows touching region, or only those fully inside it
+        private Rectangle tiles(Rectangle region, boolean inside) {
+            int size = TiledRender.TILE_SIZE;
+            int right = region.x + region.width;
+            int bottom = region.y + region.height;
+            if (inside) {
+                int firstColumn = (region.x + size - 1) / size;
+                int firstRow = (region.y + size - 1) / size;
+                int lastColumn = right == width ? columns : right / size;
+                int lastRow = bottom == height ? (height + size - 1) / size : bottom / size;
+                return new Rectangle(firstColumn, firstRow,
+                        Math.max(0, lastColumn - firstColumn), Math.max(0, lastRow - firstRow));
+            }
+            int firstColumn = region.x / size;
+            int firstRow = region.y / size;
+            return new Rectangle(firstColumn, firstRow,
+                    (right + size - 1) / size - firstColumn, (bottom + size - 1) / size - firstRow);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package event;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+
+// Filters images too big to hold in memory. The source is decoded in horizontal strips, each
+// strip is filtered as a piece of the whole picture (so the vignette still centers on the full
+// image) and streamed straight into a PNG. Memory use depends on the strip size only. Readers
+// may decode from the top of the file again for every strip, so strips are kept large.
+final class StripProcessor {
+    // Pixels per strip, each one is held about three times (decoded, filtered, PNG row buffer)
+    private static final long STRIP_PIXELS = Long.getLong("imagefilter.stripPixels", 16L << 20);
+
+    // Images above this many pixels are worth streaming rather than decoding at once
+    static final long STREAM_THRESHOLD = Long.getLong("imagefilter.streamPixels", 64L << 20);
+
+    private StripProcessor() {
+    }
+
+    // Width and height of an image file without decoding its pixels
+    static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Receives the strips of an image from top to bottom, together with the full image size
+    interface StripConsumer {
+        void accept(BufferedImage strip, int y, int width, int height, boolean alpha) throws IOException;
+    }
+
+    static void readStrips(File input, StripConsumer consumer) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = readerFor(stream, input);
+            try {
+                reader.setInput(stream, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                boolean alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+                int stripRows = (int) Math.max(1, Math.min(height, STRIP_PIXELS / width));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                for (int y = 0; y < height; y += stripRows) {
+                    int rows = Math.min(stripRows, height - y);
+                    param.setSourceRegion(new Rectangle(0, y, width, rows));
+                    consumer.accept(reader.read(0, param), y, width, height, alpha);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // onRows gets the number of rows finished so far after every strip
+    static void process(File input, File output, ImageFilter filter, IntConsumer onRows) throws IOException {
+        PngStreamWriter[] writer = new PngStreamWriter[1];
+        try {
+            readStrips(input, (strip, y, width, height, alpha) -> {
+                if (writer[0] == null) {
+                    writer[0] = new PngStreamWriter(
+                            new BufferedOutputStream(new FileOutputStream(output), 1 << 16),
+                            width, height, alpha, Deflater.DEFAULT_COMPRESSION);
+                }
+                int rows = strip.getHeight();
+                BufferedImage filtered = filter.apply(strip, 0, y, width, height);
+                writer[0].writeRows(ImageFilter.pixels(filtered), 0, width, rows);
+                onRows.accept(y + rows);
+            });
+        } catch (IOException | RuntimeException e) {
+            if (writer[0] != null) {
+                try {
+                    writer[0].close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            throw e;
+        }
+        writer[0].close();
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, File file) throws IOException {
+        if (input == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file.getName());
+        }
+        return readers.next();
+    }
+}
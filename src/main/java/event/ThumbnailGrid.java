@@ -0,0 +1,149 @@
+package event;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// A grid of filter buttons, each showing the current image with its filter applied. All buttons
+// share one small proxy of the image, made once per image; the thumbnails are rendered from it in
+// the background, one filter per core. Clicking a button passes its name and values to onClick.
+class ThumbnailGrid extends JPanel {
+    // Longest side of the proxy and every thumbnail
+    static final int THUMBNAIL_SIZE = 96;
+
+    private final BiConsumer<String, Map<String, Integer>> onClick;
+    private final Map<String, Map<String, Integer>> filters = new LinkedHashMap<>();
+    private final Map<String, JButton> buttons = new LinkedHashMap<>();
+
+    private PixelBuffer source;
+    private BufferedImage proxy;
+
+    // Bumped whenever the image or the filters change, so late renders of an older state are dropped
+    private int generation = 0;
+
+    ThumbnailGrid(BiConsumer<String, Map<String, Integer>> onClick) {
+        super(new GridLayout(0, 2, 5, 5));
+        this.onClick = onClick;
+    }
+
+    // Replaces the filters shown, in iteration order
+    void setFilters(Map<String, Map<String, Integer>> filters) {
+        this.filters.clear();
+        this.filters.putAll(filters);
+
+        removeAll();
+        buttons.clear();
+        for (Map.Entry<String, Map<String, Integer>> filter : filters.entrySet()) {
+            String name = filter.getKey();
+            Map<String, Integer> values = filter.getValue();
+            JButton button = new JButton(name);
+            button.setFocusPainted(false);
+            button.setFont(new Font("Arial", Font.PLAIN, 12));
+            button.setHorizontalTextPosition(SwingConstants.CENTER);
+            button.setVerticalTextPosition(SwingConstants.BOTTOM);
+            button.addActionListener(e -> onClick.accept(name, values));
+            buttons.put(name, button);
+            add(button);
+        }
+        revalidate();
+        repaint();
+        render();
+    }
+
+    // Called with every newly loaded image
+    void setSource(PixelBuffer source) {
+        this.source = source;
+        this.proxy = null;
+        render();
+    }
+
+    private void render() {
+        int requested = ++generation;
+        if (source == null || filters.isEmpty()) return;
+
+        BufferedImage previousProxy = proxy;
+        // The image may be replaced and released while the proxy is made
+        PixelBuffer image = previousProxy == null ? source.retain() : null;
+        List<String> names = new ArrayList<>(filters.keySet());
+        List<Map<String, Integer>> values = new ArrayList<>(filters.values());
+
+        new SwingWorker<List<BufferedImage>, Void>() {
+            private BufferedImage renderedProxy;
+
+            @Override
+            protected List<BufferedImage> doInBackground() {
+                if (image != null) {
+                    try {
+                        renderedProxy = createProxy(image, THUMBNAIL_SIZE);
+                    } finally {
+                        image.close();
+                    }
+                } else {
+                    renderedProxy = previousProxy;
+                }
+                // Thumbnails are tiny, so each is filtered on one core and the filters run side by side
+                return values.parallelStream()
+                        .map(filterValues -> new ImageFilter(filterValues)
+                                .withParallelism(1)
+                                .withSaturationMode(ImageFilter.SaturationMode.FAST)
+                                .apply(renderedProxy))
+                        .toList();
+            }
+
+            @Override
+            protected void done() {
+                if (requested != generation) return;
+                try {
+                    List<BufferedImage> thumbnails = get();
+                    proxy = renderedProxy;
+                    for (int i = 0; i < names.size(); i++) {
+                        JButton button = buttons.get(names.get(i));
+                        if (button != null) {
+                            button.setIcon(new ImageIcon(thumbnails.get(i)));
+                        }
+                    }
+                } catch (Exception e) {
+                    // Thumbnails are a convenience, the buttons keep working without them
+                    System.err.println("Error rendering thumbnails: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    // Downscales image to fit size x size, averaging a 2x2 grid of samples per pixel. Only the
+    // source rows that are sampled are read, so this stays cheap for very large images.
+    static BufferedImage createProxy(PixelBuffer image, int size) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, (double) size / Math.max(width, height));
+        int proxyWidth = Math.max(1, (int) Math.round(width * scale));
+        int proxyHeight = Math.max(1, (int) Math.round(height * scale));
+
+        BufferedImage proxy = new BufferedImage(proxyWidth, proxyHeight,
+                image.isOpaque() ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ImageFilter.pixels(proxy);
+        int[] top = new int[width];
+        int[] bottom = new int[width];
+
+        for (int y = 0; y < proxyHeight; y++) {
+            image.read(new Rectangle(0, sample(y, 0.25, height, proxyHeight), width, 1), top);
+            image.read(new Rectangle(0, sample(y, 0.75, height, proxyHeight), width, 1), bottom);
+            for (int x = 0; x < proxyWidth; x++) {
+                int left = sample(x, 0.25, width, proxyWidth);
+                int right = sample(x, 0.75, width, proxyWidth);
+                pixels[y * proxyWidth + x] = ImagePyramid.average(top[left], top[right], bottom[left], bottom[right]);
+            }
+        }
+        return proxy;
+    }
+
+    // Source coordinate at fraction of the way across proxy pixel i
+    private static int sample(int i, double fraction, int sourceSize, int proxySize) {
+        return Math.min(sourceSize - 1, (int) ((i + fraction) * sourceSize / proxySize));
+    }
+}
@@ -0,0 +1,183 @@
+package event;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+// A filtered copy of an image that is only computed where someone has looked. The image is
+// divided into square tiles; tiles that haven't been rendered yet are left fully transparent.
+// Both the source and the render live off the heap; the render's pixels are only allocated by
+// the first tile rendered, which happens off the event dispatch thread. Reference counted like a PixelBuffer: the
+// render keeps its source alive and releases both with its last reference.
+final class TiledRender implements AutoCloseable {
+    static final int TILE_SIZE = 256;
+
+    private final PixelBuffer source;
+    private final int level;
+    private final ImageFilter filter;
+    // Null until the first tile is rendered, written under the render lock
+    private volatile PixelBuffer image;
+    private final int columns;
+    private final int rows;
+
+    // Guarded by itself, tiles are marked from the render thread and read while painting
+    private final BitSet done;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    // level is the pyramid level source was taken from, 0 for the original. The render works on
+    // its own copy of filter, render() sets the cancellation check of whoever calls it on that copy
+    TiledRender(PixelBuffer source, int level, ImageFilter filter) {
+        this.source = source.retain();
+        this.level = level;
+        this.filter = filter.copy();
+        this.columns = (source.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (source.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        this.done = new BitSet(columns * rows);
+    }
+
+    // Allocates the pixels if nothing has been rendered yet
+    synchronized PixelBuffer getImage() {
+        if (image == null) {
+            image = PixelBuffer.allocate(source.getWidth(), source.getHeight(), source.isOpaque());
+        }
+        return image;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    // What the render takes once allocated, caches count it from the start
+    long bytes() {
+        return 4L * source.getWidth() * source.getHeight();
+    }
+
+    // Takes another reference, to be given back with close()
+    TiledRender retain() {
+        if (references.getAndUpdate(count -> count == 0 ? 0 : count + 1) == 0) {
+            throw new IllegalStateException("Render has already been released");
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (references.decrementAndGet() == 0) {
+            PixelBuffer rendered = image;
+            if (rendered != null) {
+                rendered.close();
+            }
+            source.close();
+        }
+    }
+
+    // A heap copy of area for painting, tiles that aren't rendered yet show the unfiltered source
+    BufferedImage snapshot(Rectangle area) {
+        PixelBuffer rendered = image;
+        if (rendered == null) {
+            return source.toImage(area);
+        }
+        BufferedImage snapshot = rendered.toImage(area);
+        if (area.isEmpty()) return snapshot;
+
+        int[] pixels = ImageFilter.pixels(snapshot);
+        for (Rectangle tile : missingBounds(area)) {
+            Rectangle part = tile.intersection(area);
+            int[] unfiltered = new int[part.width * part.height];
+            source.read(part, unfiltered);
+            for (int y = 0; y < part.height; y++) {
+                System.arraycopy(unfiltered, y * part.width, pixels,
+                        (part.y - area.y + y) * area.width + part.x - area.x, part.width);
+            }
+        }
+        return snapshot;
+    }
+
+    boolean isComplete() {
+        synchronized (done) {
+            return done.cardinality() == columns * rows;
+        }
+    }
+
+    boolean isMissing(Rectangle area) {
+        return !missingTiles(area).isEmpty();
+    }
+
+    // Renders the tiles of area that aren't done yet. Runs of neighbouring tiles in a row are
+    // filtered together so the filter can still split them across cores. Synchronized so an
+    // export finishing the image never works on the same tiles as the render thread.
+    // Returns the number of pixels filtered, 0 if every tile was done already
+    synchronized long render(Rectangle area, BooleanSupplier cancelled) {
+        filter.withCancellation(cancelled);
+        BitSet missing = missingTiles(area);
+        if (missing.isEmpty()) return 0;
+        PixelBuffer image = getImage();
+        long pixels = 0;
+
+        for (int tile = missing.nextSetBit(0); tile >= 0; ) {
+            int row = tile / columns;
+            int end = tile;
+            while (end + 1 < (row + 1) * columns && missing.get(end + 1)) {
+                end++;
+            }
+
+            Rectangle run = tileBounds(tile).union(tileBounds(end));
+            filter.apply(source, run, image);
+            pixels += (long) run.width * run.height;
+            synchronized (done) {
+                done.set(tile, end + 1);
+            }
+            tile = missing.nextSetBit(end + 1);
+        }
+        return pixels;
+    }
+
+    void renderAll(BooleanSupplier cancelled) {
+        render(new Rectangle(0, 0, source.getWidth(), source.getHeight()), cancelled);
+    }
+
+    // Bounds of the tiles overlapping area that still have to be rendered
+    List<Rectangle> missingBounds(Rectangle area) {
+        List<Rectangle> bounds = new ArrayList<>();
+        BitSet missing = missingTiles(area);
+        for (int tile = missing.nextSetBit(0); tile >= 0; tile = missing.nextSetBit(tile + 1)) {
+            bounds.add(tileBounds(tile));
+        }
+        return bounds;
+    }
+
+    private BitSet missingTiles(Rectangle area) {
+        Rectangle clipped = area.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        BitSet missing = new BitSet(columns * rows);
+        if (clipped.isEmpty()) return missing;
+
+        int firstColumn = clipped.x / TILE_SIZE;
+        int lastColumn = (clipped.x + clipped.width - 1) / TILE_SIZE;
+        int firstRow = clipped.y / TILE_SIZE;
+        int lastRow = (clipped.y + clipped.height - 1) / TILE_SIZE;
+        synchronized (done) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int tile = row * columns + column;
+                    if (!done.get(tile)) {
+                        missing.set(tile);
+                    }
+                }
+            }
+        }
+        return missing;
+    }
+
+    private Rectangle tileBounds(int tile) {
+        int x = (tile % columns) * TILE_SIZE;
+        int y = (tile / columns) * TILE_SIZE;
+        return new Rectangle(x, y,
+                Math.min(TILE_SIZE, source.getWidth() - x),
+                Math.min(TILE_SIZE, source.getHeight() - y));
+    }
+}
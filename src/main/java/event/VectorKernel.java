@@ -0,0 +1,143 @@
+package event;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.awt.*;
+
+// SIMD version of FilterKernel.filter working on packed ARGB lanes. This class is only loaded
+// when the jdk.incubator.vector module is present. Every stage repeats the float operations of
+// the scalar tables in the same order, so both paths produce the same pixels.
+final class VectorKernel {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, INTS.vectorShape());
+
+    private VectorKernel() {
+    }
+
+    static void filter(FilterKernel kernel, int[] src, int[] dst, int offset, int stride, Rectangle region,
+                       int imageWidth, int imageHeight, boolean opaque) {
+        int vectorWidth = INTS.loopBound(region.width);
+
+        if (vectorWidth > 0) {
+            filterLanes(kernel, src, dst, offset, stride, region, vectorWidth, imageWidth, imageHeight, opaque);
+        }
+
+        // Leftover columns that don't fill a whole vector
+        if (vectorWidth < region.width) {
+            Rectangle tail = new Rectangle(region.x + vectorWidth, region.y,
+                    region.width - vectorWidth, region.height);
+            kernel.filterScalar(src, dst, offset + vectorWidth, stride, tail, imageWidth, imageHeight, opaque);
+        }
+    }
+
+    private static void filterLanes(FilterKernel kernel, int[] src, int[] dst, int offset, int stride,
+                                    Rectangle region, int vectorWidth, int imageWidth, int imageHeight,
+                                    boolean opaque) {
+        FilterParams params = kernel.params();
+        int lanes = INTS.length();
+
+        float brightnessScale = 1.0f + (params.brightness() / 100.0f);
+        float contrastFactor = (259.0f * (params.contrast() + 255)) / (255.0f * (259 - params.contrast()));
+        int tempShift = (int) ((params.temperature() / 100.0f) * 30);
+        float fadeStrength = params.fade() / 100.0f;
+        float fadeKeep = 1 - fadeStrength;
+        float fadeGray = 220 * fadeStrength;
+        VignetteMask mask = params.vignette() != 0 ? VignetteMask.forSize(imageWidth, imageHeight) : null;
+        float[] vignetteRow = mask != null ? new float[vectorWidth] : null;
+
+        // Saturation goes through HSB per pixel, so its lanes are spilled to these scratch arrays
+        int[] reds = new int[lanes];
+        int[] greens = new int[lanes];
+        int[] blues = new int[lanes];
+        float[] hsb = new float[3];
+
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int row = offset + (y - region.y) * stride;
+            if (mask != null) {
+                mask.factors(region.x, y, vectorWidth, kernel.vignetteStrength(), vignetteRow);
+            }
+
+            for (int i = 0; i < vectorWidth; i += lanes) {
+                IntVector argb = IntVector.fromArray(INTS, src, row + i);
+                if (opaque) {
+                    argb = argb.or(0xff000000);
+                }
+                IntVector alpha = argb.and(0xff000000);
+                IntVector r = argb.lanewise(VectorOperators.LSHR, 16).and(0xff);
+                IntVector g = argb.lanewise(VectorOperators.LSHR, 8).and(0xff);
+                IntVector b = argb.and(0xff);
+
+                if (params.brightness() != 0) {
+                    r = clamp(toInt(toFloat(r).mul(brightnessScale)));
+                    g = clamp(toInt(toFloat(g).mul(brightnessScale)));
+                    b = clamp(toInt(toFloat(b).mul(brightnessScale)));
+                }
+
+                if (params.contrast() != 0) {
+                    r = clamp(toInt(toFloat(r.sub(128)).mul(contrastFactor).add(128)));
+                    g = clamp(toInt(toFloat(g.sub(128)).mul(contrastFactor).add(128)));
+                    b = clamp(toInt(toFloat(b.sub(128)).mul(contrastFactor).add(128)));
+                }
+
+                if (params.saturation() != 0) {
+                    r.intoArray(reds, 0);
+                    g.intoArray(greens, 0);
+                    b.intoArray(blues, 0);
+                    for (int lane = 0; lane < lanes; lane++) {
+                        int adjustedRGB = kernel.saturate(reds[lane], greens[lane], blues[lane], hsb);
+                        reds[lane] = (adjustedRGB >> 16) & 0xff;
+                        greens[lane] = (adjustedRGB >> 8) & 0xff;
+                        blues[lane] = adjustedRGB & 0xff;
+                    }
+                    r = IntVector.fromArray(INTS, reds, 0);
+                    g = IntVector.fromArray(INTS, greens, 0);
+                    b = IntVector.fromArray(INTS, blues, 0);
+                }
+
+                if (params.temperature() != 0) {
+                    r = clamp(r.add(tempShift));
+                    b = clamp(b.sub(tempShift));
+                }
+
+                if (params.fade() != 0) {
+                    r = toInt(toFloat(r).mul(fadeKeep).add(fadeGray));
+                    g = toInt(toFloat(g).mul(fadeKeep).add(fadeGray));
+                    b = toInt(toFloat(b).mul(fadeKeep).add(fadeGray));
+                }
+
+                argb = alpha.or(r.lanewise(VectorOperators.LSHL, 16))
+                        .or(g.lanewise(VectorOperators.LSHL, 8))
+                        .or(b);
+
+                if (mask != null) {
+                    FloatVector factor = FloatVector.fromArray(FLOATS, vignetteRow, i);
+
+                    alpha = argb.and(0xff000000);
+                    r = toInt(toFloat(argb.lanewise(VectorOperators.LSHR, 16).and(0xff)).mul(factor));
+                    g = toInt(toFloat(argb.lanewise(VectorOperators.LSHR, 8).and(0xff)).mul(factor));
+                    b = toInt(toFloat(argb.and(0xff)).mul(factor));
+                    argb = alpha.or(r.lanewise(VectorOperators.LSHL, 16))
+                            .or(g.lanewise(VectorOperators.LSHL, 8))
+                            .or(b);
+                }
+
+                argb.intoArray(dst, row + i);
+            }
+        }
+    }
+
+    private static FloatVector toFloat(IntVector v) {
+        return (FloatVector) v.convertShape(VectorOperators.I2F, FLOATS, 0);
+    }
+
+    private static IntVector toInt(FloatVector v) {
+        return (IntVector) v.convertShape(VectorOperators.F2I, INTS, 0);
+    }
+
+    private static IntVector clamp(IntVector v) {
+        return v.max(0).min(255);
+    }
+}
@@ -0,0 +1,111 @@
+package event;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Normalized distance from the image center, only dependent on the image size. The field is
+// mirror symmetric around the center so only one quadrant is stored. Each value is the float the
+// vignette stage always computed per pixel (distance / maxDistance), so the factors, and with
+// them the output, are exactly the same. Anything coarser would not be: a negative strength
+// pushes channels above 255, which then carry into the neighbouring channel when packed, so one
+// rounding step can change a pixel by far more than one level. Masks that would not fit into the
+// cache budget (gigapixel images) store nothing and compute the same values per pixel.
+final class VignetteMask {
+    private static long budgetBytes = Long.getLong("imagefilter.vignetteCacheBytes", 64L << 20);
+    private static long cachedBytes = 0;
+    private static final Map<Long, VignetteMask> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int centerX;
+    private final int centerY;
+    private final int stride;
+    private final float maxDistance;
+    private final float[] distance;
+
+    private VignetteMask(int width, int height, boolean stored) {
+        this.centerX = width / 2;
+        this.centerY = height / 2;
+        this.stride = centerX + 1;
+        this.maxDistance = (float) Math.sqrt((long) centerX * centerX + (long) centerY * centerY);
+        this.distance = stored ? new float[stride * (centerY + 1)] : null;
+
+        if (distance == null) return;
+        for (int dy = 0; dy <= centerY; dy++) {
+            for (int dx = 0; dx <= centerX; dx++) {
+                distance[dy * stride + dx] = distance(dx, dy);
+            }
+        }
+    }
+
+    // In float like the original stage, including the squares
+    private float distance(int dx, int dy) {
+        if (maxDistance == 0) {
+            // A single pixel is its own center, rather than 0 / 0 turning it black
+            return 0;
+        }
+        float x = dx;
+        float y = dy;
+        return (float) Math.sqrt(x * x + y * y) / maxDistance;
+    }
+
+    // Masks are shared between renders and threads, changing the strength never rebuilds one
+    static VignetteMask forSize(int width, int height) {
+        Long key = ((long) width << 32) | height;
+        synchronized (cache) {
+            VignetteMask mask = cache.get(key);
+            if (mask == null) {
+                long storedBytes = 4L * (width / 2 + 1) * (height / 2 + 1);
+                mask = new VignetteMask(width, height, storedBytes <= budgetBytes);
+                cache.put(key, mask);
+                cachedBytes += mask.bytes();
+                evict();
+            }
+            return mask;
+        }
+    }
+
+    // Upper bound for all cached masks together, least recently used sizes are dropped first
+    static void setBudgetBytes(long bytes) {
+        synchronized (cache) {
+            budgetBytes = bytes;
+            evict();
+        }
+    }
+
+    // Lowering the budget can drop stored masks that are still in use, they just aren't kept
+    private static void evict() {
+        Iterator<VignetteMask> masks = cache.values().iterator();
+        while (cachedBytes > budgetBytes && masks.hasNext()) {
+            cachedBytes -= masks.next().bytes();
+            masks.remove();
+        }
+    }
+
+    long bytes() {
+        return distance != null ? 4L * distance.length : 0;
+    }
+
+    // strength is the vignette slider value / 100
+    float factor(int x, int y, float strength) {
+        int dx = Math.abs(x - centerX);
+        int dy = Math.abs(y - centerY);
+        float d = distance != null ? distance[dy * stride + dx] : distance(dx, dy);
+        return Math.max(0.0f, 1.0f - d * strength);
+    }
+
+    // Fills factors[0 .. count) for pixels (fromX, y), (fromX + 1, y), ...
+    void factors(int fromX, int y, int count, float strength, float[] factors) {
+        int dy = Math.abs(y - centerY);
+        if (distance == null) {
+            for (int i = 0; i < count; i++) {
+                factors[i] = Math.max(0.0f, 1.0f - distance(Math.abs(fromX + i - centerX), dy) * strength);
+            }
+            return;
+        }
+        int row = dy * stride;
+        for (int i = 0; i < count; i++) {
+            int index = row + Math.abs(fromX + i - centerX);
+            factors[i] = Math.max(0.0f, 1.0f - distance[index] * strength);
+        }
+    }
+}